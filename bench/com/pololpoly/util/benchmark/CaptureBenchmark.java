@@ -0,0 +1,150 @@
+package com.pololpoly.util.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pololpoly.util.DumpException;
+import com.pololpoly.util.HostData;
+import com.pololpoly.util.JVMDumper;
+
+/**
+ * A whole capture over RMI: the benchmark JVM starts a JMX connector server
+ * on the loopback interface and the dumper connects to it like to any other
+ * host. Idle threads and synthetic MBeans make the dump and report bigger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CaptureBenchmark {
+
+	@Param({ "200" })
+	public int idleThreads;
+
+	@Param({ "500" })
+	public int mbeans;
+
+	private Registry registry;
+	private JMXConnectorServer connectorServer;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	private JVMDumper dumper;
+	private HostData hostData;
+	private MBeanServerConnection connection;
+	private File dumpFile;
+	private File reportFile;
+
+	@Setup
+	public void setUp() throws IOException, JMException {
+		QuietOutput.start();
+
+		int port = findFreePort();
+		registry = LocateRegistry.createRegistry(port);
+		JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi");
+		connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(url, null,
+				ManagementFactory.getPlatformMBeanServer());
+		connectorServer.start();
+
+		for (int i = 0; i < idleThreads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "idle-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		ReportBenchmark.registerSamples(ManagementFactory.getPlatformMBeanServer(), mbeans);
+
+		dumper = new JVMDumper();
+		hostData = new HostData(new String[] { "localhost", String.valueOf(port) });
+		connection = dumper.getConnection(hostData);
+		dumpFile = File.createTempFile("benchmark", ".tdump");
+		reportFile = File.createTempFile("benchmark", "-mbean.html");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, JMException {
+		dumper.close();
+		connectorServer.stop();
+		UnicastRemoteObject.unexportObject(registry, true);
+		release.countDown();
+		ReportBenchmark.unregisterSamples(ManagementFactory.getPlatformMBeanServer());
+		dumpFile.delete();
+		reportFile.delete();
+		QuietOutput.stop();
+	}
+
+	@Benchmark
+	public long threadDump() throws IOException, DumpException {
+		dumper.dumpToFile(dumpFile.getPath(), connection);
+		return dumpFile.length();
+	}
+
+	@Benchmark
+	public long mbeanReport() {
+		dumper.createReportCreator(null).createHtmlReport(reportFile.getPath(), connection);
+		return reportFile.length();
+	}
+
+	/**
+	 * Dump and report over a new connection, as for a host in a single run.
+	 */
+	@Benchmark
+	public long connectAndCapture() throws IOException, DumpException {
+		JVMDumper fresh = new JVMDumper();
+		try {
+			MBeanServerConnection freshConnection = fresh.getConnection(hostData);
+			fresh.dumpToFile(dumpFile.getPath(), freshConnection);
+			fresh.createReportCreator(null).createHtmlReport(reportFile.getPath(), freshConnection);
+			return dumpFile.length() + reportFile.length();
+		} finally {
+			fresh.close();
+		}
+	}
+
+	private static int findFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
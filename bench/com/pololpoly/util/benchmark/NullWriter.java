@@ -0,0 +1,39 @@
+package com.pololpoly.util.benchmark;
+
+import java.io.Writer;
+
+/**
+ * Counts and drops the characters written, so a benchmark measures the
+ * formatting and not the disk.
+ */
+class NullWriter extends Writer {
+
+	private long count;
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		count += len;
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		count += len;
+	}
+
+	@Override
+	public void write(int c) {
+		count++;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,38 @@
+package com.pololpoly.util.benchmark;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Silences the progress messages the dumper prints for every file, which
+ * would otherwise flood the benchmark output.
+ */
+class QuietOutput {
+
+	private static PrintStream original;
+
+	private QuietOutput() {
+	}
+
+	static synchronized void start() {
+		if (original == null) {
+			original = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+	}
+
+	static synchronized void stop() {
+		if (original != null) {
+			System.setOut(original);
+			original = null;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.pololpoly.util.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pololpoly.util.MBeanFilter;
+import com.pololpoly.util.MBeanInfoCache;
+import com.pololpoly.util.ReportCreator;
+
+/**
+ * The MBean report over the platform MBean server of the benchmark JVM,
+ * with thousands of synthetic MBeans registered. No connector is involved,
+ * so this measures the walk and the HTML rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+	static final String DOMAIN = "jvmdumper.benchmark";
+
+	/**
+	 * A synthetic MBean with the usual mix of attribute types.
+	 */
+	public interface SampleMBean {
+
+		int getCount();
+
+		long getTotalTime();
+
+		String getName();
+
+		String[] getTags();
+
+		boolean isEnabled();
+	}
+
+	public static class Sample implements SampleMBean {
+
+		private final int id;
+
+		Sample(int id) {
+			this.id = id;
+		}
+
+		public int getCount() {
+			return id;
+		}
+
+		public long getTotalTime() {
+			return id * 1000L;
+		}
+
+		public String getName() {
+			return "sample <" + id + "> & more";
+		}
+
+		public String[] getTags() {
+			return new String[] { "tag-" + (id % 10), "group-" + (id % 100), "id-" + id };
+		}
+
+		public boolean isEnabled() {
+			return id % 2 == 0;
+		}
+	}
+
+	@Param({ "1000", "5000" })
+	public int mbeans;
+
+	private File reportFile;
+	private ReportCreator warm;
+
+	@Setup
+	public void setUp() throws JMException, IOException {
+		QuietOutput.start();
+		registerSamples(ManagementFactory.getPlatformMBeanServer(), mbeans);
+		reportFile = File.createTempFile("benchmark", "-mbean.html");
+
+		warm = createReportCreator();
+		warm.setInfoCache(new MBeanInfoCache(MBeanInfoCache.DEFAULT_MAX_ENTRIES));
+	}
+
+	@TearDown
+	public void tearDown() throws JMException {
+		unregisterSamples(ManagementFactory.getPlatformMBeanServer());
+		reportFile.delete();
+		QuietOutput.stop();
+	}
+
+	/**
+	 * Every MBeanInfo is read again, like for the first host of a run.
+	 */
+	@Benchmark
+	public long coldInfoCache() {
+		ReportCreator creator = createReportCreator();
+		creator.setInfoCache(new MBeanInfoCache(MBeanInfoCache.DEFAULT_MAX_ENTRIES));
+		creator.createHtmlReport(reportFile.getPath(), ManagementFactory.getPlatformMBeanServer());
+		return reportFile.length();
+	}
+
+	/**
+	 * The MBeanInfo comes from the cache, like for the following hosts.
+	 */
+	@Benchmark
+	public long warmInfoCache() {
+		warm.createHtmlReport(reportFile.getPath(), ManagementFactory.getPlatformMBeanServer());
+		return reportFile.length();
+	}
+
+	private static ReportCreator createReportCreator() {
+		MBeanFilter filter = new MBeanFilter();
+		filter.addRule("include", DOMAIN + ":*");
+		ReportCreator creator = new ReportCreator();
+		creator.setFilter(filter);
+		return creator;
+	}
+
+	static void registerSamples(MBeanServer server, int count) throws JMException {
+		for (int i = 0; i < count; i++) {
+			server.registerMBean(new Sample(i), new ObjectName(DOMAIN + ":type=Sample,group=g" + (i % 50) + ",id="
+					+ i));
+		}
+	}
+
+	static void unregisterSamples(MBeanServer server) throws JMException {
+		for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+			server.unregisterMBean(name);
+		}
+	}
+}
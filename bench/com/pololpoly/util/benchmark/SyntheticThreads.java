@@ -0,0 +1,71 @@
+package com.pololpoly.util.benchmark;
+
+import java.util.Random;
+
+import com.pololpoly.util.ThreadRecord;
+import com.pololpoly.util.ThreadRecord.LockRecord;
+import com.pololpoly.util.ThreadSample;
+
+/**
+ * Builds thread samples that look like those of a busy application server:
+ * pools of threads sharing a few deep stacks, some of them blocked on a
+ * handful of locks. The same seed always gives the same sample.
+ */
+class SyntheticThreads {
+
+	private static final String[] POOLS = { "http-nio-8080-exec-", "pool-1-thread-", "ForkJoinPool-1-worker-",
+			"cache-loader-" };
+	private static final Thread.State[] STATES = { Thread.State.RUNNABLE, Thread.State.WAITING,
+			Thread.State.TIMED_WAITING, Thread.State.BLOCKED };
+
+	private SyntheticThreads() {
+	}
+
+	static ThreadSample createSample(int threadCount, int stackDepth, boolean withLocks) {
+		Random random = new Random(42);
+		String[][] stacks = new String[32][];
+		for (int i = 0; i < stacks.length; i++) {
+			stacks[i] = createStack(random, stackDepth);
+		}
+
+		ThreadRecord[] threads = new ThreadRecord[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			Thread.State state = STATES[random.nextInt(STATES.length)];
+			String[] stack = stacks[random.nextInt(stacks.length)];
+
+			String lockName = null;
+			String ownerName = null;
+			long ownerId = -1;
+			if (state == Thread.State.BLOCKED) {
+				int lock = random.nextInt(8);
+				lockName = "java.lang.Object@" + Integer.toHexString(0x1000 + lock);
+				ownerId = lock + 1;
+				ownerName = POOLS[0] + ownerId;
+			} else if (state != Thread.State.RUNNABLE) {
+				lockName = "java.util.concurrent.locks.AbstractQueuedSynchronizer$ConditionObject@"
+						+ Integer.toHexString(0x2000 + i % 16);
+			}
+
+			LockRecord[] monitors = new LockRecord[0];
+			if (withLocks && i < 8) {
+				monitors = new LockRecord[] { new LockRecord("java.lang.Object", 0x1000 + i, 3, stack[3]) };
+			}
+
+			threads[i] = new ThreadRecord(i + 1, POOLS[i % POOLS.length] + (i + 1), state, lockName, ownerName,
+					ownerId, false, state == Thread.State.RUNNABLE && i % 3 == 0, stack, monitors, new LockRecord[0]);
+		}
+
+		return new ThreadSample(System.currentTimeMillis(), "synthetic", "2024-01-01 00:00:00",
+				"\nFull thread dump Synthetic VM\n", withLocks, threads);
+	}
+
+	private static String[] createStack(Random random, int depth) {
+		String[] stack = new String[depth];
+		for (int i = 0; i < depth; i++) {
+			int n = random.nextInt(200);
+			stack[i] = "com.example.service.layer" + (n % 10) + ".Component" + n + ".method" + (n % 7) + "(Component"
+					+ n + ".java:" + (100 + n) + ")";
+		}
+		return stack;
+	}
+}
@@ -0,0 +1,102 @@
+package com.pololpoly.util.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pololpoly.util.ContentionAnalyzer;
+import com.pololpoly.util.DeadlockDetector;
+import com.pololpoly.util.StackAggregator;
+import com.pololpoly.util.ThreadDumpFormatter;
+import com.pololpoly.util.ThreadRecord;
+import com.pololpoly.util.ThreadSample;
+import com.pololpoly.util.ThreadSampleWriter;
+
+/**
+ * The work done on a thread dump once it has been read from the JVM:
+ * rendering it as .tdump text or binary samples, and the analyses run on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadDumpBenchmark {
+
+	@Param({ "1000", "10000", "50000" })
+	public int threads;
+
+	@Param({ "64" })
+	public int stackDepth;
+
+	private ThreadSample sample;
+
+	@Setup
+	public void setUp() {
+		sample = SyntheticThreads.createSample(threads, stackDepth, true);
+	}
+
+	@Benchmark
+	public long writeText() throws IOException {
+		NullWriter out = new NullWriter();
+		new ThreadDumpFormatter().writeThreadDump(out, sample);
+		return out.getCount();
+	}
+
+	@Benchmark
+	public long writeBinary() throws IOException {
+		CountingStream out = new CountingStream();
+		ThreadSampleWriter writer = new ThreadSampleWriter(out, "synthetic");
+		writer.handleSample(sample);
+		writer.close();
+		return out.count;
+	}
+
+	@Benchmark
+	public int uniqueStacks() {
+		StackAggregator aggregator = new StackAggregator();
+		aggregator.addAll(sample.getThreads());
+		return aggregator.getGroups().size();
+	}
+
+	@Benchmark
+	public List<ThreadRecord[]> findDeadlocks() {
+		return DeadlockDetector.findDeadlocks(sample);
+	}
+
+	@Benchmark
+	public int contention() {
+		ContentionAnalyzer analyzer = new ContentionAnalyzer();
+		analyzer.add(sample);
+		return analyzer.getLocks().size();
+	}
+
+	private static class CountingStream extends OutputStream {
+
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
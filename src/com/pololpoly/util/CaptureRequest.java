@@ -0,0 +1,85 @@
+package com.pololpoly.util;
+
+/**
+ * What a capture takes from a host: the thread dump, the MBean report, both,
+ * or a burst of thread dumps a fixed time apart, with or without the report.
+ * The class histogram runs a full GC on the host, so it is only taken when it
+ * is asked for, as a capture of its own or after a single dump and report.
+ */
+class CaptureRequest {
+
+	enum Kind {
+		ALL, DUMP, REPORT, BURST, BURST_AND_REPORT, HISTOGRAM, ALL_AND_HISTOGRAM
+	}
+
+	static final CaptureRequest ALL = new CaptureRequest(Kind.ALL, 0, 0);
+	static final CaptureRequest ALL_AND_HISTOGRAM = new CaptureRequest(Kind.ALL_AND_HISTOGRAM, 0, 0);
+
+	private final Kind kind;
+	private final int samples;
+	private final long intervalMillis;
+
+	/**
+	 * @param samples
+	 *            the number of dumps of a burst
+	 * @param intervalMillis
+	 *            the time between two dumps of a burst
+	 */
+	CaptureRequest(Kind kind, int samples, long intervalMillis) {
+		this.kind = kind;
+		this.samples = samples;
+		this.intervalMillis = intervalMillis;
+	}
+
+	Kind getKind() {
+		return kind;
+	}
+
+	boolean includesThreads() {
+		return kind != Kind.REPORT && kind != Kind.HISTOGRAM;
+	}
+
+	boolean includesReport() {
+		return kind == Kind.ALL || kind == Kind.REPORT || kind == Kind.BURST_AND_REPORT
+				|| kind == Kind.ALL_AND_HISTOGRAM;
+	}
+
+	boolean includesHistogram() {
+		return kind == Kind.HISTOGRAM || kind == Kind.ALL_AND_HISTOGRAM;
+	}
+
+	boolean isBurst() {
+		return kind == Kind.BURST || kind == Kind.BURST_AND_REPORT;
+	}
+
+	int getSamples() {
+		return samples;
+	}
+
+	long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	@Override
+	public int hashCode() {
+		return kind.hashCode() * 31 + samples * 17 + (int) (intervalMillis ^ (intervalMillis >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CaptureRequest)) {
+			return false;
+		}
+		CaptureRequest other = (CaptureRequest) obj;
+		return kind == other.kind && samples == other.samples && intervalMillis == other.intervalMillis;
+	}
+
+	@Override
+	public String toString() {
+		String burst = "burst of " + samples + " dumps " + intervalMillis + " ms apart";
+		if (kind == Kind.BURST) {
+			return burst;
+		}
+		return kind == Kind.BURST_AND_REPORT ? burst + " and report" : kind.name().toLowerCase().replace('_', ' ');
+	}
+}
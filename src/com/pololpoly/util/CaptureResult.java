@@ -0,0 +1,70 @@
+package com.pololpoly.util;
+
+/**
+ * Outcome of capturing the thread dump and MBean report of a single host.
+ */
+public class CaptureResult {
+
+	public enum Status {
+		SUCCEEDED, FAILED, TIMED_OUT
+	}
+
+	private final String hostKey;
+	private final HostData hostData;
+	private final Status status;
+	private final String message;
+	private final long elapsedMillis;
+	private final CaptureStats stats;
+
+	public CaptureResult(String hostKey, HostData hostData, Status status, String message, long elapsedMillis) {
+		this(hostKey, hostData, status, message, elapsedMillis, null);
+	}
+
+	/**
+	 * @param stats
+	 *            the counters of the capture, null if it never started
+	 */
+	public CaptureResult(String hostKey, HostData hostData, Status status, String message, long elapsedMillis,
+			CaptureStats stats) {
+		this.hostKey = hostKey;
+		this.hostData = hostData;
+		this.status = status;
+		this.message = message;
+		this.elapsedMillis = elapsedMillis;
+		this.stats = stats;
+	}
+
+	public String getHostKey() {
+		return hostKey;
+	}
+
+	public HostData getHostData() {
+		return hostData;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public CaptureStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(hostKey).append(" (").append(hostData).append(") ").append(status).append(" in ").append(elapsedMillis).append(" ms");
+		if (message != null) {
+			sb.append(": ").append(message);
+		}
+		return sb.toString();
+	}
+}
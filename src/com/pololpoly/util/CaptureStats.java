@@ -0,0 +1,170 @@
+package com.pololpoly.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * Counts the work done for one host: the time of each phase, the calls made
+ * to the JVM, the MBeans and attributes read, the bytes written and the
+ * retries of the thread dump. The counters travel with the connection: the
+ * capture hands an {@link #instrument(MBeanServerConnection) instrumented}
+ * connection to the dumpers and report creators, which count every call made
+ * through it and find the counters with {@link #of(MBeanServerConnection)}.
+ */
+public class CaptureStats {
+
+	public enum Phase {
+		CONNECT, THREADS, REPORT
+	}
+
+	private final AtomicLongArray phaseMillis = new AtomicLongArray(Phase.values().length);
+	private final AtomicLong remoteCalls = new AtomicLong();
+	private final AtomicLong mbeans = new AtomicLong();
+	private final AtomicLong attributes = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong dumpRetries = new AtomicLong();
+
+	/**
+	 * @return the counters of an instrumented connection, or null if the
+	 *         connection is not instrumented
+	 */
+	public static CaptureStats of(MBeanServerConnection connection) {
+		if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			if (handler instanceof CountingHandler) {
+				return ((CountingHandler) handler).stats;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a connection that counts every call made through it as a
+	 *         remote call of this host
+	 */
+	public MBeanServerConnection instrument(MBeanServerConnection connection) {
+		return (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+				new Class<?>[] { MBeanServerConnection.class }, new CountingHandler(connection, this));
+	}
+
+	public void addPhase(Phase phase, long millis) {
+		phaseMillis.addAndGet(phase.ordinal(), millis);
+	}
+
+	public void addMBeans(int count) {
+		mbeans.addAndGet(count);
+	}
+
+	public void addAttributes(int count) {
+		attributes.addAndGet(count);
+	}
+
+	public void addBytesWritten(long count) {
+		bytesWritten.addAndGet(count);
+	}
+
+	/**
+	 * @return a stream that counts the bytes written through it as written
+	 *         for this host
+	 */
+	public OutputStream count(OutputStream out) {
+		return new CountingOutputStream(out, this);
+	}
+
+	public void addDumpRetry() {
+		dumpRetries.incrementAndGet();
+	}
+
+	/**
+	 * Adds all counters of another capture to these.
+	 */
+	public void add(CaptureStats other) {
+		for (Phase phase : Phase.values()) {
+			addPhase(phase, other.getPhaseMillis(phase));
+		}
+		remoteCalls.addAndGet(other.getRemoteCalls());
+		mbeans.addAndGet(other.getMBeans());
+		attributes.addAndGet(other.getAttributes());
+		bytesWritten.addAndGet(other.getBytesWritten());
+		dumpRetries.addAndGet(other.getDumpRetries());
+	}
+
+	public long getPhaseMillis(Phase phase) {
+		return phaseMillis.get(phase.ordinal());
+	}
+
+	public long getRemoteCalls() {
+		return remoteCalls.get();
+	}
+
+	public long getMBeans() {
+		return mbeans.get();
+	}
+
+	public long getAttributes() {
+		return attributes.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getDumpRetries() {
+		return dumpRetries.get();
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private final CaptureStats stats;
+
+		CountingOutputStream(OutputStream out, CaptureStats stats) {
+			super(out);
+			this.stats = stats;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			stats.addBytesWritten(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			stats.addBytesWritten(len);
+		}
+	}
+
+	private static class CountingHandler implements InvocationHandler {
+
+		private final MBeanServerConnection connection;
+		private final CaptureStats stats;
+
+		CountingHandler(MBeanServerConnection connection, CaptureStats stats) {
+			this.connection = connection;
+			this.stats = stats;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(connection, args);
+			}
+
+			stats.remoteCalls.incrementAndGet();
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the results and counters of a run as JSON, for scripts that keep
+ * track of how long the captures of a fleet take.
+ * 
+ * <pre>
+ * {
+ *   "elapsedMillis": 5120,
+ *   "hosts": 2, "succeeded": 1, "failed": 1, "timedOut": 0,
+ *   "totals": { "connectMillis": 310, ... },
+ *   "captures": [ { "hostKey": "app1", "host": "app1:9010", "status": "SUCCEEDED", ... } ]
+ * }
+ * </pre>
+ */
+public class CaptureSummary {
+
+	public static void write(Writer out, List<CaptureResult> results, long elapsedMillis) throws IOException {
+		CaptureStats totals = new CaptureStats();
+		int[] statusCounts = new int[CaptureResult.Status.values().length];
+		for (CaptureResult result : results) {
+			statusCounts[result.getStatus().ordinal()]++;
+			if (result.getStats() != null) {
+				totals.add(result.getStats());
+			}
+		}
+
+		out.write("{\n");
+		out.write("  \"elapsedMillis\": " + elapsedMillis + ",\n");
+		out.write("  \"hosts\": " + results.size() + ",\n");
+		out.write("  \"succeeded\": " + statusCounts[CaptureResult.Status.SUCCEEDED.ordinal()] + ",\n");
+		out.write("  \"failed\": " + statusCounts[CaptureResult.Status.FAILED.ordinal()] + ",\n");
+		out.write("  \"timedOut\": " + statusCounts[CaptureResult.Status.TIMED_OUT.ordinal()] + ",\n");
+		out.write("  \"totals\": ");
+		writeStats(out, totals, elapsedMillis);
+		out.write(",\n");
+
+		out.write("  \"captures\": [");
+		for (int i = 0; i < results.size(); i++) {
+			CaptureResult result = results.get(i);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("    { \"hostKey\": " + quote(result.getHostKey()));
+			out.write(", \"host\": " + quote(String.valueOf(result.getHostData())));
+			out.write(", \"status\": " + quote(result.getStatus().name()));
+			if (result.getMessage() != null) {
+				out.write(", \"message\": " + quote(result.getMessage()));
+			}
+			out.write(", \"elapsedMillis\": " + result.getElapsedMillis());
+			if (result.getStats() != null) {
+				out.write(", \"stats\": ");
+				writeStats(out, result.getStats(), result.getElapsedMillis());
+			}
+			out.write(" }");
+		}
+		out.write(results.isEmpty() ? "]\n" : "\n  ]\n");
+		out.write("}\n");
+	}
+
+	private static void writeStats(Writer out, CaptureStats stats, long elapsedMillis) throws IOException {
+		long reportMillis = stats.getPhaseMillis(CaptureStats.Phase.REPORT);
+
+		out.write("{ \"connectMillis\": " + stats.getPhaseMillis(CaptureStats.Phase.CONNECT));
+		out.write(", \"threadsMillis\": " + stats.getPhaseMillis(CaptureStats.Phase.THREADS));
+		out.write(", \"reportMillis\": " + reportMillis);
+		out.write(", \"remoteCalls\": " + stats.getRemoteCalls());
+		out.write(", \"mbeans\": " + stats.getMBeans());
+		out.write(", \"attributes\": " + stats.getAttributes());
+		out.write(", \"bytesWritten\": " + stats.getBytesWritten());
+		out.write(", \"dumpRetries\": " + stats.getDumpRetries());
+		out.write(", \"mbeansPerSecond\": " + perSecond(stats.getMBeans(), reportMillis));
+		out.write(", \"bytesPerSecond\": " + perSecond(stats.getBytesWritten(), elapsedMillis));
+		out.write(" }");
+	}
+
+	private static String perSecond(long count, long millis) {
+		return millis == 0 ? "0" : String.format(Locale.ENGLISH, "%.1f", count * 1000.0 / millis);
+	}
+
+	private static String quote(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
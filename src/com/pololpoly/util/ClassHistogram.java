@@ -0,0 +1,200 @@
+package com.pololpoly.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * The number of instances and bytes per class of a heap, as printed by the
+ * gcClassHistogram diagnostic command (jmap -histo:live):
+ *
+ * <pre>
+ *  num     #instances         #bytes  class name (module)
+ * -------------------------------------------------------
+ *    1:         31470        2795336  [B (java.base@17.0.9)
+ *    2:          2908         349488  java.lang.Class (java.base@17.0.9)
+ * </pre>
+ *
+ * The text is parsed a character at a time into three arrays, without
+ * splitting it into lines, so a histogram of many thousand classes costs
+ * little more than the class names.
+ */
+public class ClassHistogram {
+
+	public static final String DIAGNOSTIC_COMMAND_NAME = "com.sun.management:type=DiagnosticCommand";
+
+	private static final String GC_CLASS_HISTOGRAM = "gcClassHistogram";
+
+	private String[] classNames = new String[1024];
+	private long[] instances = new long[1024];
+	private long[] bytes = new long[1024];
+	private int size;
+
+	/**
+	 * Runs gcClassHistogram in the JVM, which collects the garbage first so
+	 * only live objects are counted. HotSpot JVMs of Java 8 and later have the
+	 * DiagnosticCommand MBean.
+	 *
+	 * @return the text of the histogram
+	 */
+	public static String capture(MBeanServerConnection connection) throws IOException, DumpException {
+		try {
+			return (String) connection.invoke(new ObjectName(DIAGNOSTIC_COMMAND_NAME), GC_CLASS_HISTOGRAM,
+					new Object[] { new String[0] }, new String[] { String[].class.getName() });
+		} catch (JMException e) {
+			throw new DumpException("Could not get a class histogram: " + e);
+		}
+	}
+
+	public static ClassHistogram parse(String text) throws IOException {
+		return parse(new StringReader(text));
+	}
+
+	/**
+	 * Reads a histogram file, which may be compressed, see
+	 * {@link Compression#openInput(File)}.
+	 */
+	public static ClassHistogram read(File file) throws IOException {
+		Reader reader = new InputStreamReader(Compression.openInput(file), "UTF-8");
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads the rows "num: instances bytes class-name", every other line is
+	 * skipped.
+	 */
+	public static ClassHistogram parse(Reader reader) throws IOException {
+		ClassHistogram histogram = new ClassHistogram();
+		char[] buffer = new char[64 * 1024];
+		StringBuilder className = new StringBuilder(128);
+
+		// the column of the current row: 0 num, 1 ':', 2 instances, 3 bytes,
+		// 4 class name, 5 rest of the line, -1 not a row
+		int column = 0;
+		long instances = 0;
+		long bytes = 0;
+		boolean inToken = false;
+
+		int count;
+		while ((count = reader.read(buffer)) >= 0) {
+			for (int i = 0; i < count; i++) {
+				char c = buffer[i];
+
+				if (c == '\n' || c == '\r') {
+					if (column == 4 && className.length() > 0 || column == 5) {
+						histogram.add(className.toString(), instances, bytes);
+					}
+					column = 0;
+					instances = 0;
+					bytes = 0;
+					inToken = false;
+					className.setLength(0);
+					continue;
+				}
+				if (column < 0 || column == 5) {
+					continue;
+				}
+
+				boolean space = c == ' ' || c == '\t';
+				if (space) {
+					if (inToken) {
+						inToken = false;
+						column++;
+					}
+					continue;
+				}
+
+				inToken = true;
+				switch (column) {
+				case 0:
+					if (c == ':') {
+						column = 2;
+						inToken = false;
+					} else if (c < '0' || c > '9') {
+						column = -1;
+					}
+					break;
+				case 1:
+					// the colon must follow the number
+					column = -1;
+					break;
+				case 2:
+				case 3:
+					if (c < '0' || c > '9') {
+						column = -1;
+					} else if (column == 2) {
+						instances = instances * 10 + (c - '0');
+					} else {
+						bytes = bytes * 10 + (c - '0');
+					}
+					break;
+				default:
+					className.append(c);
+				}
+			}
+		}
+		if (column == 4 && className.length() > 0 || column == 5) {
+			histogram.add(className.toString(), instances, bytes);
+		}
+
+		return histogram;
+	}
+
+	private void add(String className, long instanceCount, long byteCount) {
+		if (size == classNames.length) {
+			classNames = Arrays.copyOf(classNames, size * 2);
+			instances = Arrays.copyOf(instances, size * 2);
+			bytes = Arrays.copyOf(bytes, size * 2);
+		}
+		classNames[size] = className;
+		instances[size] = instanceCount;
+		bytes[size] = byteCount;
+		size++;
+	}
+
+	/**
+	 * @return the number of classes
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getClassName(int index) {
+		return classNames[index];
+	}
+
+	public long getInstances(int index) {
+		return instances[index];
+	}
+
+	public long getBytes(int index) {
+		return bytes[index];
+	}
+
+	public long getTotalInstances() {
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			total += instances[i];
+		}
+		return total;
+	}
+
+	public long getTotalBytes() {
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			total += bytes[i];
+		}
+		return total;
+	}
+}
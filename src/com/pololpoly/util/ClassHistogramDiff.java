@@ -0,0 +1,175 @@
+package com.pololpoly.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares the class histograms of the same JVM taken one after another, and
+ * reports the classes that grew the most in instances and in bytes from the
+ * first histogram to the last. A class that grew between every two
+ * histograms is the usual suspect of a leak, so the report also says in how
+ * many of the intervals a class grew. The histograms themselves are not
+ * kept, only the counts of the first and the last one per class.
+ */
+public class ClassHistogramDiff {
+
+	public static final int DEFAULT_TOP = 20;
+
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+	private final List<String> classNames = new ArrayList<String>();
+	private long[] firstInstances = new long[1024];
+	private long[] firstBytes = new long[1024];
+	private long[] lastInstances = new long[1024];
+	private long[] lastBytes = new long[1024];
+	private int[] growths = new int[1024];
+	private int histograms;
+
+	public void add(ClassHistogram histogram) {
+		// classes that are missing from this histogram have no instances left
+		long[] previousInstances = lastInstances.clone();
+		Arrays.fill(lastInstances, 0, classNames.size(), 0);
+		Arrays.fill(lastBytes, 0, classNames.size(), 0);
+
+		for (int i = 0; i < histogram.size(); i++) {
+			int index = getIndex(histogram.getClassName(i));
+			lastInstances[index] += histogram.getInstances(i);
+			lastBytes[index] += histogram.getBytes(i);
+			if (histograms == 0) {
+				firstInstances[index] = lastInstances[index];
+				firstBytes[index] = lastBytes[index];
+			}
+		}
+
+		if (histograms > 0) {
+			for (int index = 0; index < classNames.size(); index++) {
+				if (lastInstances[index] > (index < previousInstances.length ? previousInstances[index] : 0)) {
+					growths[index]++;
+				}
+			}
+		}
+		histograms++;
+	}
+
+	private int getIndex(String className) {
+		Integer index = indexes.get(className);
+		if (index != null) {
+			return index.intValue();
+		}
+
+		int newIndex = classNames.size();
+		if (newIndex == firstInstances.length) {
+			int length = newIndex * 2;
+			firstInstances = Arrays.copyOf(firstInstances, length);
+			firstBytes = Arrays.copyOf(firstBytes, length);
+			lastInstances = Arrays.copyOf(lastInstances, length);
+			lastBytes = Arrays.copyOf(lastBytes, length);
+			growths = Arrays.copyOf(growths, length);
+		}
+		classNames.add(className);
+		indexes.put(className, Integer.valueOf(newIndex));
+		return newIndex;
+	}
+
+	/**
+	 * Writes the top classes by growth in instances and by growth in bytes.
+	 */
+	public void writeReport(Writer out, int top) throws IOException {
+		if (histograms < 2) {
+			out.write("Class histogram growth needs at least 2 histograms, got " + histograms + ".\n");
+			return;
+		}
+
+		out.write("Class histogram growth over " + histograms + " histograms of " + classNames.size()
+				+ " classes\n\n");
+
+		out.write("Top " + top + " classes by instances:\n");
+		writeTop(out, top, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return compareGrowth(lastInstances, firstInstances, lastBytes, firstBytes, o1.intValue(), o2
+						.intValue());
+			}
+		});
+
+		out.write("\nTop " + top + " classes by bytes:\n");
+		writeTop(out, top, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return compareGrowth(lastBytes, firstBytes, lastInstances, firstInstances, o1.intValue(), o2
+						.intValue());
+			}
+		});
+	}
+
+	private static int compareGrowth(long[] last, long[] first, long[] lastOther, long[] firstOther, int index1,
+			int index2) {
+		long growth1 = last[index1] - first[index1];
+		long growth2 = last[index2] - first[index2];
+		if (growth1 != growth2) {
+			return growth1 > growth2 ? -1 : 1;
+		}
+		growth1 = lastOther[index1] - firstOther[index1];
+		growth2 = lastOther[index2] - firstOther[index2];
+		return growth1 > growth2 ? -1 : growth1 < growth2 ? 1 : 0;
+	}
+
+	private void writeTop(Writer out, int top, Comparator<Integer> comparator) throws IOException {
+		List<Integer> ranked = new ArrayList<Integer>(classNames.size());
+		for (int index = 0; index < classNames.size(); index++) {
+			ranked.add(Integer.valueOf(index));
+		}
+		Collections.sort(ranked, comparator);
+
+		out.write(String.format(Locale.ENGLISH, "%14s %14s %16s %16s %7s  %s%n", "#instances", "+instances",
+				"#bytes", "+bytes", "grew", "class name"));
+		for (int i = 0; i < Math.min(top, ranked.size()); i++) {
+			int index = ranked.get(i).intValue();
+			out.write(String.format(Locale.ENGLISH, "%14d %+14d %16d %+16d %3d/%-3d  %s%n", Long
+					.valueOf(lastInstances[index]), Long.valueOf(lastInstances[index] - firstInstances[index]),
+					Long.valueOf(lastBytes[index]), Long.valueOf(lastBytes[index] - firstBytes[index]), Integer
+							.valueOf(growths[index]), Integer.valueOf(histograms - 1), classNames.get(index)));
+		}
+	}
+
+	public static void main(String[] args) {
+		int top = DEFAULT_TOP;
+		int argIndex = 0;
+		if (args.length > 1 && "-top".equals(args[0])) {
+			top = Integer.parseInt(args[1]);
+			argIndex = 2;
+		}
+		if (args.length - argIndex < 2) {
+			System.out.println("Usage: java -cp JVMDumper.jar " + ClassHistogramDiff.class.getName()
+					+ " [-top <classes>] <histogram-file> <histogram-file>...");
+			System.exit(1);
+		}
+
+		ClassHistogramDiff diff = new ClassHistogramDiff();
+		for (int i = argIndex; i < args.length; i++) {
+			try {
+				diff.add(ClassHistogram.read(new File(args[i])));
+			} catch (IOException e) {
+				System.err.println("Could not read " + args[i] + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+			diff.writeReport(out, top);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Could not write the report: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands the written bytes to a compressing stream on another thread, so the
+ * thread reading from the remote JVM never waits for the compressor. The
+ * bytes are collected in chunks, and the chunks of one stream are compressed
+ * strictly in order by at most one thread at a time. All streams share one
+ * pool with a thread per processor, and a stream that is more than
+ * {@link #MAX_PENDING_CHUNKS} chunks ahead of its compressor blocks its
+ * writer, so many hosts written at once neither overload the processors nor
+ * queue up unbounded memory.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_PENDING_CHUNKS = 4;
+
+	private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(Runtime.getRuntime()
+			.availableProcessors(), new NamedThreadFactory("compress"));
+
+	private final OutputStream out;
+	private final Semaphore pending = new Semaphore(MAX_PENDING_CHUNKS);
+	private final Queue<byte[]> chunks = new ArrayDeque<byte[]>();
+	private boolean compressing;
+	private volatile IOException failure;
+	private boolean closed;
+	private boolean closeWhenDone;
+
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private int count;
+
+	/**
+	 * @param out
+	 *            the compressing stream, it is only used by the compressor
+	 *            threads and closed by {@link #close()}
+	 */
+	public CompressingOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		if (count == chunk.length) {
+			submit();
+		}
+		chunk[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		while (len > 0) {
+			if (count == chunk.length) {
+				submit();
+			}
+			int n = Math.min(len, chunk.length - count);
+			System.arraycopy(b, off, chunk, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Only passes the collected bytes on, the compressed file is complete
+	 * after {@link #close()}.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			submit();
+		}
+	}
+
+	/**
+	 * Waits until every chunk is compressed, then finishes the compressed
+	 * stream. If the wait is interrupted, the chunks still queued are dropped
+	 * and the stream is closed by the compressor once it is done with it.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			flush();
+			pending.acquire(MAX_PENDING_CHUNKS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abandon();
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (IOException e) {
+			abandon();
+			throw e;
+		}
+
+		out.close();
+		checkFailure();
+	}
+
+	/**
+	 * Closes the compressing stream, which must never happen while a
+	 * compressor writes to it.
+	 */
+	private void abandon() {
+		synchronized (chunks) {
+			chunks.clear();
+			if (compressing) {
+				closeWhenDone = true;
+				return;
+			}
+		}
+		closeQuietly();
+	}
+
+	private void closeQuietly() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// the file is incomplete anyway
+		}
+	}
+
+	private void submit() throws IOException {
+		checkFailure();
+
+		try {
+			pending.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		}
+
+		byte[] full = count == chunk.length ? chunk : copyOf(chunk, count);
+		chunk = new byte[CHUNK_SIZE];
+		count = 0;
+
+		synchronized (chunks) {
+			chunks.add(full);
+			if (compressing) {
+				return;
+			}
+			compressing = true;
+		}
+
+		COMPRESSORS.execute(new Runnable() {
+			public void run() {
+				compressChunks();
+			}
+		});
+	}
+
+	private void compressChunks() {
+		while (true) {
+			byte[] next;
+			synchronized (chunks) {
+				next = chunks.poll();
+				if (next == null) {
+					compressing = false;
+					if (closeWhenDone) {
+						closeQuietly();
+					}
+					return;
+				}
+			}
+
+			try {
+				if (failure == null) {
+					out.write(next);
+				}
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				pending.release();
+			}
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Could not write the compressed file: " + failure.getMessage(), failure);
+		}
+	}
+
+	private static byte[] copyOf(byte[] bytes, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return copy;
+	}
+}
@@ -0,0 +1,120 @@
+package com.pololpoly.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * How the dumps and reports are written to disk. The compressed formats are
+ * produced while the file is written, by a {@link CompressingOutputStream}.
+ */
+public enum Compression {
+
+	NONE(""),
+	/** gzip, readable with gunzip or zcat */
+	GZIP(".gz"),
+	/** a raw zlib stream, slightly smaller than gzip */
+	DEFLATE(".deflate");
+
+	private final String extension;
+
+	private Compression(String extension) {
+		this.extension = extension;
+	}
+
+	/**
+	 * @return the name of the file that is written for the given path
+	 */
+	public String getFileName(String filePath) {
+		return filePath + extension;
+	}
+
+	/**
+	 * Creates {@link #getFileName(String)} and returns a stream that
+	 * compresses what is written to it.
+	 */
+	public OutputStream open(String filePath) throws IOException {
+		return open(filePath, null);
+	}
+
+	/**
+	 * @param stats
+	 *            counts the bytes written to the file, after compression, may
+	 *            be null
+	 */
+	public OutputStream open(String filePath, CaptureStats stats) throws IOException {
+		FileOutputStream file = new FileOutputStream(getFileName(filePath));
+		OutputStream counted = stats == null ? file : stats.count(file);
+		if (this == NONE) {
+			return counted;
+		}
+
+		try {
+			return new CompressingOutputStream(wrap(counted));
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a file written with any of the compressions, chosen by its
+	 * extension.
+	 */
+	public static InputStream openInput(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(GZIP.extension)) {
+				return new GZIPInputStream(in, 64 * 1024);
+			} else if (file.getName().endsWith(DEFLATE.extension)) {
+				final Inflater inflater = new Inflater();
+				return new InflaterInputStream(in, inflater, 64 * 1024) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							// only its own default inflater is ended by the stream
+							inflater.end();
+						}
+					}
+				};
+			}
+			return in;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	OutputStream wrap(OutputStream out) throws IOException {
+		switch (this) {
+		case GZIP:
+			return new GZIPOutputStream(out, 64 * 1024);
+		case DEFLATE:
+			final Deflater deflater = new Deflater();
+			return new DeflaterOutputStream(out, deflater, 64 * 1024) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						// frees the native memory now instead of at finalization
+						deflater.end();
+					}
+				}
+			};
+		default:
+			return out;
+		}
+	}
+}
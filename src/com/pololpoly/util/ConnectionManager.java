@@ -0,0 +1,289 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Keeps one JMX connection per {@link HostData} open for reuse. A cached
+ * connection is checked with a cheap remote call before it is handed out and
+ * replaced by a new one when it has failed. All connections are closed by
+ * {@link #close()}.
+ * <p>
+ * JVMs on this machine are reached through the local connector the Attach
+ * API starts in them, see {@link LocalAttach}, and the dumper's own JVM
+ * through its platform MBean server without any connector.
+ * <p>
+ * A capture {@link #lease(HostData) leases} the connection of its host, so
+ * that aborting one capture does not close the connection under the other
+ * captures of the same host.
+ */
+public class ConnectionManager {
+
+	private static final Logger LOGGER = Logger.getLogger(ConnectionManager.class.getName());
+
+	private static final ExecutorService CLOSE_POOL = Executors.newCachedThreadPool(new NamedThreadFactory(
+			"connection-close"));
+
+	private final ConcurrentMap<HostData, ManagedConnection> connections = new ConcurrentHashMap<HostData, ManagedConnection>();
+	private volatile boolean closed;
+
+	public MBeanServerConnection getConnection(HostData hostData) throws IOException {
+		return getConnector(hostData).getMBeanServerConnection();
+	}
+
+	public JMXConnector getConnector(HostData hostData) throws IOException {
+		if (closed) {
+			throw new IOException("Connection manager is closed");
+		}
+
+		return getManaged(hostData).connect();
+	}
+
+	/**
+	 * Hands out the connection of a host until {@link Lease#release()} or
+	 * {@link Lease#abort()}. The connection itself is only opened by
+	 * {@link Lease#getConnection()}.
+	 */
+	public Lease lease(HostData hostData) {
+		while (true) {
+			ManagedConnection managed = getManaged(hostData);
+			managed.users.incrementAndGet();
+			if (!managed.closed) {
+				return new Lease(managed);
+			}
+			// closed by the abort of its last user in the meantime
+			managed.users.decrementAndGet();
+			connections.remove(hostData, managed);
+		}
+	}
+
+	private ManagedConnection getManaged(HostData hostData) {
+		ManagedConnection managed = connections.get(hostData);
+		if (managed == null) {
+			managed = new ManagedConnection(hostData);
+			ManagedConnection existing = connections.putIfAbsent(hostData, managed);
+			if (existing != null) {
+				managed = existing;
+			}
+		}
+		return managed;
+	}
+
+	/**
+	 * Closes the connection of a host, for example one that stopped
+	 * responding. Pending calls on it fail and the next request for the host
+	 * opens a new connection.
+	 */
+	public void invalidate(HostData hostData) {
+		ManagedConnection managed = connections.remove(hostData);
+		if (managed != null) {
+			managed.close();
+		}
+	}
+
+	public void close() {
+		closed = true;
+
+		List<HostData> hosts = new ArrayList<HostData>(connections.keySet());
+		for (HostData hostData : hosts) {
+			invalidate(hostData);
+		}
+	}
+
+	private static boolean isEmpty(String string) {
+		return string == null || string.length() == 0;
+	}
+
+	protected JMXConnector connect(HostData hostData) throws IOException {
+		switch (hostData.getType()) {
+		case SELF:
+			System.out.println("Using the platform MBean server of this process");
+			return new LocalConnector();
+		case PID:
+		case MAIN:
+			return LocalAttach.connect(hostData);
+		default:
+			return connectRemote(hostData);
+		}
+	}
+
+	private JMXConnector connectRemote(HostData hostData) throws IOException {
+
+		Map<String, String[]> properties = new Hashtable<String, String[]>();
+
+		if (!isEmpty(hostData.getUserName()) && !isEmpty(hostData.getPassword())) {
+			System.out.println("User name is " + hostData.getUserName());
+			System.out.println("Password is " + hostData.getPassword());
+			properties.put("jmx.remote.credentials", new String[] { hostData.getUserName(), hostData.getPassword() });
+		} else {
+			System.out.println("No credentials provided.");
+		}
+
+		String connectionString = "/jndi/rmi://" + hostData.getHostName() + ":" + hostData.getPort() + "/jmxrmi";
+		System.out.println("Connecting to " + connectionString);
+
+		JMXServiceURL url = new JMXServiceURL("rmi", "", 0, connectionString);
+		return JMXConnectorFactory.connect(url, properties);
+	}
+
+	/**
+	 * The use of a host's connection by one capture.
+	 */
+	public class Lease {
+
+		private final ManagedConnection managed;
+		private final AtomicBoolean ended = new AtomicBoolean();
+
+		private Lease(ManagedConnection managed) {
+			this.managed = managed;
+		}
+
+		public MBeanServerConnection getConnection() throws IOException {
+			if (closed || ended.get()) {
+				throw new IOException("Connection to " + managed.hostData + " was closed");
+			}
+			return managed.connect().getMBeanServerConnection();
+		}
+
+		public void release() {
+			if (ended.compareAndSet(false, true)) {
+				managed.release();
+			}
+		}
+
+		/**
+		 * Gives up a connection that stopped responding. The next lease of the
+		 * host gets a new connection, and this one is closed, which makes its
+		 * pending calls fail, as soon as no other lease uses it any more.
+		 */
+		public void abort() {
+			if (ended.compareAndSet(false, true)) {
+				connections.remove(managed.hostData, managed);
+				managed.abandoned = true;
+				managed.release();
+			}
+		}
+	}
+
+	private class ManagedConnection implements NotificationListener {
+
+		private final HostData hostData;
+
+		private volatile JMXConnector connector;
+		private volatile boolean failed;
+		private volatile boolean closed;
+
+		// the leases of the connection, it is closed when the last one of an
+		// abandoned connection ends
+		private final AtomicInteger users = new AtomicInteger();
+		private volatile boolean abandoned;
+
+		ManagedConnection(HostData hostData) {
+			this.hostData = hostData;
+		}
+
+		void release() {
+			if (users.decrementAndGet() == 0 && abandoned) {
+				close();
+			}
+		}
+
+		synchronized JMXConnector connect() throws IOException {
+			JMXConnector current = connector;
+			if (current != null && isAlive(current)) {
+				return current;
+			}
+
+			if (current != null) {
+				LOGGER.log(Level.INFO, "Reconnecting to " + hostData);
+				closeConnector(current);
+			}
+
+			current = ConnectionManager.this.connect(hostData);
+			failed = false;
+			current.addConnectionNotificationListener(this, null, null);
+			connector = current;
+
+			if (closed) {
+				// closed while connecting, the new connection must not leak
+				closeConnector(current);
+				throw new IOException("Connection to " + hostData + " was closed");
+			}
+
+			return current;
+		}
+
+		private boolean isAlive(JMXConnector current) {
+			if (failed) {
+				return false;
+			}
+
+			try {
+				current.getConnectionId();
+				return true;
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Connection to " + hostData + " failed: " + e.getMessage());
+				return false;
+			}
+		}
+
+		public void handleNotification(Notification notification, Object handback) {
+			String type = notification.getType();
+			if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+				failed = true;
+			}
+		}
+
+		/**
+		 * Not synchronized, so that a connection can be closed while another
+		 * thread is blocked on it. Closing sends a last call to the JVM, which
+		 * blocks as well if the JVM stopped responding, so it is done on
+		 * another thread.
+		 */
+		void close() {
+			closed = true;
+			failed = true;
+			final JMXConnector current = connector;
+			if (current != null) {
+				CLOSE_POOL.execute(new Runnable() {
+					public void run() {
+						closeConnector(current);
+					}
+				});
+			}
+		}
+
+		private void closeConnector(JMXConnector current) {
+			try {
+				current.removeConnectionNotificationListener(this);
+			} catch (Exception e) {
+				// the listener is gone with the connection
+			}
+
+			try {
+				current.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not close the connection to " + hostData + ": " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package com.pololpoly.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the contended locks in a series of thread samples. A lock is
+ * contended when threads are BLOCKED on it, or WAITING for it while another
+ * thread owns it, like a held ReentrantLock; threads waiting on a lock nobody
+ * holds, like idle pool threads, are not counted. Each lock keeps how long it
+ * stayed contended and the sample where most threads waited for it, with its
+ * owner at that time. A sample is processed in one pass over its threads, so
+ * the analysis takes about as long as reading the samples.
+ */
+public class ContentionAnalyzer implements ThreadSampleHandler {
+
+	public static class LockContention {
+
+		private final String lockName;
+		private int samples;
+		private int run;
+		private int longestRun;
+		private int lastSample;
+		private long waiterSamples;
+
+		private int peakSample;
+		private String peakDate;
+		private int peakBlocked;
+		private int peakWaiting;
+		private ThreadRecord peakOwner;
+		private String peakOwnerName;
+		private final List<String> peakWaiters = new ArrayList<String>();
+
+		LockContention(String lockName) {
+			this.lockName = lockName;
+		}
+
+		public String getLockName() {
+			return lockName;
+		}
+
+		/**
+		 * @return the number of samples in which the lock was contended
+		 */
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * @return the most consecutive samples in which the lock was contended
+		 */
+		public int getLongestRun() {
+			return longestRun;
+		}
+
+		/**
+		 * @return the waiting threads added up over all samples
+		 */
+		public long getWaiterSamples() {
+			return waiterSamples;
+		}
+
+		public int getPeakWaiters() {
+			return peakBlocked + peakWaiting;
+		}
+
+		/**
+		 * @return the owner in the sample with the most waiting threads, null
+		 *         if it was not among the sampled threads
+		 */
+		public ThreadRecord getPeakOwner() {
+			return peakOwner;
+		}
+	}
+
+	private static final Comparator<LockContention> RANK_ORDER = new Comparator<LockContention>() {
+		public int compare(LockContention first, LockContention second) {
+			if (first.longestRun != second.longestRun) {
+				return second.longestRun - first.longestRun;
+			}
+			if (first.waiterSamples != second.waiterSamples) {
+				return first.waiterSamples < second.waiterSamples ? 1 : -1;
+			}
+			return first.lockName.compareTo(second.lockName);
+		}
+	};
+
+	private static final String INDENT = "    ";
+
+	private final Map<String, LockContention> locks = new HashMap<String, LockContention>();
+	private final ThreadDumpFormatter formatter = new ThreadDumpFormatter();
+	private int sampleCount;
+	private String firstDate;
+	private String lastDate;
+
+	public void handleSample(ThreadSample sample) {
+		add(sample);
+	}
+
+	public void add(ThreadSample sample) {
+		sampleCount++;
+		if (firstDate == null) {
+			firstDate = sample.getDumpDate();
+		}
+		lastDate = sample.getDumpDate();
+
+		ThreadRecord[] threads = sample.getThreads();
+		if (threads == null) {
+			return;
+		}
+
+		Map<Long, ThreadRecord> byId = new HashMap<Long, ThreadRecord>();
+		Map<String, List<ThreadRecord>> waitersByLock = new HashMap<String, List<ThreadRecord>>();
+
+		for (ThreadRecord thread : threads) {
+			byId.put(Long.valueOf(thread.getThreadId()), thread);
+			if (isContending(thread)) {
+				List<ThreadRecord> waiters = waitersByLock.get(thread.getLockName());
+				if (waiters == null) {
+					waiters = new ArrayList<ThreadRecord>();
+					waitersByLock.put(thread.getLockName(), waiters);
+				}
+				waiters.add(thread);
+			}
+		}
+
+		for (Map.Entry<String, List<ThreadRecord>> entry : waitersByLock.entrySet()) {
+			LockContention lock = locks.get(entry.getKey());
+			if (lock == null) {
+				lock = new LockContention(entry.getKey());
+				locks.put(entry.getKey(), lock);
+			}
+			update(lock, sample, entry.getValue(), byId);
+		}
+	}
+
+	private void update(LockContention lock, ThreadSample sample, List<ThreadRecord> waiters,
+			Map<Long, ThreadRecord> byId) {
+		lock.samples++;
+		lock.run = lock.lastSample == sampleCount - 1 ? lock.run + 1 : 1;
+		lock.longestRun = Math.max(lock.longestRun, lock.run);
+		lock.lastSample = sampleCount;
+		lock.waiterSamples += waiters.size();
+
+		if (waiters.size() <= lock.getPeakWaiters()) {
+			return;
+		}
+
+		lock.peakSample = sampleCount;
+		lock.peakDate = sample.getDumpDate();
+		lock.peakBlocked = 0;
+		lock.peakWaiting = 0;
+		lock.peakWaiters.clear();
+		lock.peakOwner = null;
+		lock.peakOwnerName = null;
+
+		for (ThreadRecord waiter : waiters) {
+			if (waiter.getThreadState() == Thread.State.BLOCKED) {
+				lock.peakBlocked++;
+			} else {
+				lock.peakWaiting++;
+			}
+			lock.peakWaiters.add(waiter.getThreadName());
+
+			if (lock.peakOwnerName == null && waiter.getLockOwnerId() >= 0) {
+				lock.peakOwner = byId.get(Long.valueOf(waiter.getLockOwnerId()));
+				lock.peakOwnerName = waiter.getLockOwnerName();
+			}
+		}
+	}
+
+	private static boolean isContending(ThreadRecord thread) {
+		if (thread.getLockName() == null) {
+			return false;
+		}
+		switch (thread.getThreadState()) {
+		case BLOCKED:
+			return true;
+		case WAITING:
+		case TIMED_WAITING:
+			return thread.getLockOwnerId() >= 0;
+		default:
+			return false;
+		}
+	}
+
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * @return the contended locks, the longest contended first and then the
+	 *         one with the most waiting threads over all samples
+	 */
+	public List<LockContention> getLocks() {
+		List<LockContention> sorted = new ArrayList<LockContention>(locks.values());
+		Collections.sort(sorted, RANK_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * Writes the contended locks in rank order, each with the sample where
+	 * most threads waited for it: the owner with its stack and the names of
+	 * the waiting threads.
+	 */
+	public void writeReport(Writer out) throws IOException {
+		List<LockContention> sorted = getLocks();
+
+		out.write("Contended locks: " + sorted.size() + " in " + sampleCount
+				+ (sampleCount == 1 ? " sample" : " samples"));
+		if (firstDate != null) {
+			out.write(" from " + firstDate + " to " + lastDate);
+		}
+		out.write(ThreadDumpFormatter.NEW_LINE);
+
+		int rank = 0;
+		for (LockContention lock : sorted) {
+			out.write(ThreadDumpFormatter.NEW_LINE);
+			out.write("#" + (++rank) + " <" + lock.lockName + "> contended in " + lock.samples + " of "
+					+ sampleCount + " samples, " + lock.longestRun + " in a row, "
+					+ String.format(Locale.ENGLISH, "%.1f", Double.valueOf((double) lock.waiterSamples / lock.samples))
+					+ " threads waiting on average");
+			out.write(ThreadDumpFormatter.NEW_LINE);
+
+			out.write(INDENT);
+			out.write("most waiting in sample " + lock.peakSample + " (" + lock.peakDate + "): " + lock.peakBlocked
+					+ " blocked, " + lock.peakWaiting + " waiting");
+			out.write(ThreadDumpFormatter.NEW_LINE);
+
+			out.write(INDENT);
+			out.write("waiting threads: ");
+			boolean first = true;
+			for (String name : lock.peakWaiters) {
+				if (!first) {
+					out.write(", ");
+				}
+				out.write("\"");
+				out.write(name);
+				out.write("\"");
+				first = false;
+			}
+			out.write(ThreadDumpFormatter.NEW_LINE);
+
+			out.write(INDENT);
+			if (lock.peakOwner != null) {
+				out.write("owned by:");
+				out.write(ThreadDumpFormatter.NEW_LINE);
+				formatter.writeSingleThread(out, lock.peakOwner);
+			} else {
+				out.write("owned by: " + (lock.peakOwnerName == null ? "unknown" : "\"" + lock.peakOwnerName + "\"")
+						+ ", not in the sample");
+				out.write(ThreadDumpFormatter.NEW_LINE);
+			}
+		}
+	}
+
+	/**
+	 * Writes the contention report of a binary samples file to standard out.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java -cp JVMDumper.jar " + ContentionAnalyzer.class.getName()
+					+ " <samples-file>");
+			System.exit(1);
+		}
+
+		try {
+			ContentionAnalyzer analyzer = new ContentionAnalyzer();
+			ThreadSampleReader reader = new ThreadSampleReader(new File(args[0]));
+			try {
+				ThreadSample sample;
+				while ((sample = reader.next()) != null) {
+					analyzer.add(sample);
+				}
+			} finally {
+				reader.close();
+			}
+
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+			analyzer.writeReport(out);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Could not analyze " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
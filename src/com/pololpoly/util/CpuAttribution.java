@@ -0,0 +1,232 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Reads the CPU time and allocated bytes of every thread together with each
+ * thread sample, and writes the threads that used the most CPU and allocated
+ * the most between two consecutive samples, each with its stack.
+ * <p>
+ * If the remote ThreadMXBean is a {@code com.sun.management.ThreadMXBean},
+ * the values of all threads are read with one bulk call each, or thread by
+ * thread on JVMs without the bulk calls. Otherwise only the CPU time is read
+ * and allocations are not reported, and they are never reported for threads
+ * whose allocations the JVM does not measure.
+ */
+public class CpuAttribution implements ThreadSampleHandler {
+
+	private static final Logger LOGGER = Logger.getLogger(CpuAttribution.class.getName());
+	private static final String EXTENDED_THREAD_MXBEAN = "com.sun.management.ThreadMXBean";
+
+	private static class ThreadUsage {
+
+		private final ThreadRecord thread;
+		private final long cpuNanos;
+		private final long allocatedBytes;
+
+		ThreadUsage(ThreadRecord thread, long cpuNanos, long allocatedBytes) {
+			this.thread = thread;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+	}
+
+	private static final Comparator<ThreadUsage> CPU_ORDER = new Comparator<ThreadUsage>() {
+		public int compare(ThreadUsage first, ThreadUsage second) {
+			return first.cpuNanos > second.cpuNanos ? -1 : (first.cpuNanos == second.cpuNanos ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<ThreadUsage> ALLOCATION_ORDER = new Comparator<ThreadUsage>() {
+		public int compare(ThreadUsage first, ThreadUsage second) {
+			return first.allocatedBytes > second.allocatedBytes ? -1
+					: (first.allocatedBytes == second.allocatedBytes ? 0 : 1);
+		}
+	};
+
+	private final Writer out;
+	private final int topCount;
+	private final ThreadMXBean threadMxBean;
+	private final com.sun.management.ThreadMXBean extendedThreadMxBean;
+	private final ThreadDumpFormatter formatter = new ThreadDumpFormatter();
+
+	private boolean bulkSupported;
+	private boolean allocationSupported;
+	private Map<Long, ThreadUsage> previous;
+	private long previousNanos;
+	private long previousTimestamp;
+
+	public CpuAttribution(MBeanServerConnection connection, Writer out, int topCount) throws IOException {
+		this.out = out;
+		this.topCount = topCount;
+		this.threadMxBean = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.THREAD_MXBEAN_NAME,
+				ThreadMXBean.class);
+
+		com.sun.management.ThreadMXBean extended = null;
+		try {
+			ObjectName name = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+			if (connection.isInstanceOf(name, EXTENDED_THREAD_MXBEAN)) {
+				extended = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.THREAD_MXBEAN_NAME,
+						com.sun.management.ThreadMXBean.class);
+			}
+		} catch (InstanceNotFoundException e) {
+			LOGGER.log(Level.WARNING, "No thread MXBean found: " + e.getMessage());
+		} catch (MalformedObjectNameException e) {
+			LOGGER.log(Level.WARNING, "Invalid thread MXBean name: " + e.getMessage());
+		}
+		this.extendedThreadMxBean = extended;
+		this.bulkSupported = extended != null;
+		this.allocationSupported = extended != null;
+	}
+
+	public void handleSample(ThreadSample sample) throws IOException {
+		ThreadRecord[] threads = sample.getThreads();
+		if (threads == null) {
+			return;
+		}
+
+		long nanos = System.nanoTime();
+		Map<Long, ThreadUsage> current = readUsage(threads);
+
+		if (previous != null) {
+			writeInterval(current, nanos - previousNanos, sample.getTimestamp());
+		}
+
+		previous = current;
+		previousNanos = nanos;
+		previousTimestamp = sample.getTimestamp();
+	}
+
+	private Map<Long, ThreadUsage> readUsage(ThreadRecord[] threads) {
+		long[] ids = new long[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			ids[i] = threads[i].getThreadId();
+		}
+
+		long[] cpuNanos = null;
+		long[] allocatedBytes = null;
+
+		if (bulkSupported) {
+			try {
+				cpuNanos = extendedThreadMxBean.getThreadCpuTime(ids);
+				allocatedBytes = extendedThreadMxBean.getThreadAllocatedBytes(ids);
+			} catch (RuntimeException e) {
+				// JVMs before 6u25 have the interface but not the bulk operations
+				LOGGER.log(Level.INFO, "Bulk thread CPU times are not supported, reading them one by one: "
+						+ e.getMessage());
+				bulkSupported = false;
+			}
+		}
+
+		if (cpuNanos == null) {
+			cpuNanos = new long[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				cpuNanos[i] = threadMxBean.getThreadCpuTime(ids[i]);
+			}
+		}
+		if (allocatedBytes == null && allocationSupported) {
+			allocatedBytes = readAllocatedBytes(ids);
+		}
+
+		Map<Long, ThreadUsage> usage = new HashMap<Long, ThreadUsage>(threads.length * 2);
+		for (int i = 0; i < threads.length; i++) {
+			// -1 for threads that ended or when measuring is disabled
+			if (cpuNanos[i] >= 0) {
+				long allocated = allocatedBytes != null ? allocatedBytes[i] : -1;
+				usage.put(Long.valueOf(ids[i]), new ThreadUsage(threads[i], cpuNanos[i], allocated));
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * @return the bytes allocated by each thread, read one by one, or null if
+	 *         the JVM cannot tell
+	 */
+	private long[] readAllocatedBytes(long[] ids) {
+		long[] allocatedBytes = new long[ids.length];
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				allocatedBytes[i] = extendedThreadMxBean.getThreadAllocatedBytes(ids[i]);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.INFO, "Thread allocations are not supported, only CPU times are reported: "
+					+ e.getMessage());
+			allocationSupported = false;
+			return null;
+		}
+		return allocatedBytes;
+	}
+
+	private void writeInterval(Map<Long, ThreadUsage> current, long elapsedNanos, long timestamp)
+			throws IOException {
+		List<ThreadUsage> deltas = new ArrayList<ThreadUsage>(current.size());
+		for (ThreadUsage usage : current.values()) {
+			ThreadUsage before = previous.get(Long.valueOf(usage.thread.getThreadId()));
+			long cpu = usage.cpuNanos - (before != null ? before.cpuNanos : 0);
+			// unknown unless measured in both samples, or for a new thread
+			long allocated = usage.allocatedBytes < 0 || before != null && before.allocatedBytes < 0 ? -1
+					: usage.allocatedBytes - (before != null ? before.allocatedBytes : 0);
+			deltas.add(new ThreadUsage(usage.thread, cpu, allocated));
+		}
+
+		double elapsedSeconds = Math.max(1, elapsedNanos) / 1e9;
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH);
+
+		out.write("Interval " + dateFormat.format(new Date(previousTimestamp)) + " - "
+				+ dateFormat.format(new Date(timestamp)) + " (" + Math.round(elapsedSeconds * 1000) + " ms), "
+				+ deltas.size() + " threads\n");
+
+		Collections.sort(deltas, CPU_ORDER);
+		out.write("\nTop " + topCount + " threads by CPU:\n\n");
+		writeTop(deltas, elapsedSeconds);
+
+		List<ThreadUsage> allocating = new ArrayList<ThreadUsage>(deltas.size());
+		for (ThreadUsage delta : deltas) {
+			if (delta.allocatedBytes >= 0) {
+				allocating.add(delta);
+			}
+		}
+		if (!allocating.isEmpty()) {
+			Collections.sort(allocating, ALLOCATION_ORDER);
+			out.write("Top " + topCount + " threads by allocation rate:\n\n");
+			writeTop(allocating, elapsedSeconds);
+		}
+
+		out.write(ThreadDumpFormatter.END_OF_DUMP);
+		out.flush();
+	}
+
+	private void writeTop(List<ThreadUsage> sorted, double elapsedSeconds) throws IOException {
+		for (int i = 0; i < topCount && i < sorted.size(); i++) {
+			ThreadUsage usage = sorted.get(i);
+			out.write(String.format(Locale.ENGLISH, "cpu=%.1f%% (%d ms)", 100 * usage.cpuNanos / 1e9
+					/ elapsedSeconds, usage.cpuNanos / 1000000));
+			if (usage.allocatedBytes >= 0) {
+				out.write(String.format(Locale.ENGLISH, " alloc=%.2f MB/s", usage.allocatedBytes / elapsedSeconds
+						/ (1024 * 1024)));
+			}
+			out.write("\n");
+			formatter.writeSingleThread(out, usage.thread);
+		}
+	}
+}
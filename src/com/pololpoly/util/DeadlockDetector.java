@@ -0,0 +1,109 @@
+package com.pololpoly.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pololpoly.util.ThreadRecord.LockRecord;
+
+/**
+ * Finds deadlocks in the threads of a sample without asking the JVM again. A
+ * thread that waits for a lock points to the thread owning it, and as every
+ * thread waits for at most one lock, each deadlock is a cycle that is found
+ * by following these edges once from every thread.
+ * <p>
+ * The threads of a dump are not read at one instant, so when the sample has
+ * the locked monitors and synchronizers, an edge is only followed if the
+ * owner still lists the lock as held; waits that were already over when the
+ * owner was read do not show up as deadlocks.
+ */
+public class DeadlockDetector {
+
+	private DeadlockDetector() {
+	}
+
+	/**
+	 * @return the threads of every deadlock, each starting with the thread
+	 *         found first in the sample and followed by the owner of the lock
+	 *         it waits for; empty if there is none or the sample has no
+	 *         threads
+	 */
+	public static List<ThreadRecord[]> findDeadlocks(ThreadSample sample) {
+		ThreadRecord[] threads = sample.getThreads();
+		if (threads == null) {
+			return Collections.emptyList();
+		}
+
+		Map<Long, Integer> indexes = new HashMap<Long, Integer>();
+		for (int i = 0; i < threads.length; i++) {
+			indexes.put(Long.valueOf(threads[i].getThreadId()), Integer.valueOf(i));
+		}
+
+		int[] waitsFor = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			waitsFor[i] = -1;
+			ThreadRecord thread = threads[i];
+			if (thread.getLockOwnerId() < 0 || thread.getLockName() == null) {
+				continue;
+			}
+
+			Integer owner = indexes.get(Long.valueOf(thread.getLockOwnerId()));
+			if (owner != null && (!sample.isWithLocks() || holds(threads[owner.intValue()], thread.getLockName()))) {
+				waitsFor[i] = owner.intValue();
+			}
+		}
+
+		// the walk from thread i marks every thread it passes with i + 1
+		int[] walk = new int[threads.length];
+		List<ThreadRecord[]> deadlocks = new ArrayList<ThreadRecord[]>();
+
+		for (int i = 0; i < threads.length; i++) {
+			int current = i;
+			while (current >= 0 && walk[current] == 0) {
+				walk[current] = i + 1;
+				current = waitsFor[current];
+			}
+
+			if (current >= 0 && walk[current] == i + 1) {
+				deadlocks.add(getCycle(threads, waitsFor, current));
+			}
+		}
+
+		return deadlocks;
+	}
+
+	private static ThreadRecord[] getCycle(ThreadRecord[] threads, int[] waitsFor, int start) {
+		List<ThreadRecord> cycle = new ArrayList<ThreadRecord>();
+		int first = start;
+		int current = start;
+		do {
+			cycle.add(threads[current]);
+			first = Math.min(first, current);
+			current = waitsFor[current];
+		} while (current != start);
+
+		// start with the thread that comes first in the dump, like the JVM does
+		int offset = 0;
+		while (cycle.get(offset) != threads[first]) {
+			offset++;
+		}
+		Collections.rotate(cycle, -offset);
+
+		return cycle.toArray(new ThreadRecord[cycle.size()]);
+	}
+
+	private static boolean holds(ThreadRecord thread, String lockName) {
+		return contains(thread.getLockedMonitors(), lockName) || contains(thread.getLockedSynchronizers(), lockName);
+	}
+
+	private static boolean contains(LockRecord[] locks, String lockName) {
+		for (LockRecord lock : locks) {
+			if (lockName.equals(lock.toString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
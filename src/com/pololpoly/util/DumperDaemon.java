@@ -0,0 +1,436 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the hosts of a server list connected and captures them on request
+ * over a small HTTP API on the loopback interface:
+ *
+ * <pre>
+ * GET /dump?host=app01         thread dump of one host
+ * GET /report?group=app*       MBean reports of the hosts whose prefix matches
+ * GET /burst?samples=10&amp;interval=500   a burst of thread dumps of all hosts
+ * GET /capture                 thread dump and MBean report of all hosts
+ * GET /histogram?host=app01    class histogram of one host, runs a full GC on it
+ * GET /hosts                   the hosts of the server list
+ * </pre>
+ *
+ * The output files are written like in a normal run, the response lists the
+ * result of every host as soon as its capture is done. Each host runs one
+ * capture at a time; a request for a capture that is already queued for a
+ * host waits for the queued one instead of adding another.
+ */
+public class DumperDaemon {
+
+	private static final Logger LOGGER = Logger.getLogger(DumperDaemon.class.getName());
+
+	public static final int DEFAULT_THREADS = 8;
+
+	private static final long KEEP_ALIVE_SECONDS = 30;
+	private static final int DEFAULT_BURST_SAMPLES = 10;
+	private static final long DEFAULT_BURST_INTERVAL = 1000;
+
+	private final JVMDumper dumper;
+	private final OutputPrefixes outputPrefixes;
+	private final Map<String, List<Target>> targets = new LinkedHashMap<String, List<Target>>();
+	private final ExecutorService capturePool;
+	private final ExecutorService workers = Executors.newCachedThreadPool(new NamedThreadFactory("capture-worker"));
+	private final ExecutorService warmPool;
+	private final ScheduledExecutorService keepAlive = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+			"keep-alive"));
+	private HttpServer server;
+
+	/**
+	 * Reads the whole server list, the daemon captures the same hosts until it
+	 * is stopped.
+	 */
+	public DumperDaemon(JVMDumper dumper, HostListReader hosts, String outputPath) throws IOException {
+		this.dumper = dumper;
+		this.outputPrefixes = new OutputPrefixes(dumper, outputPath);
+		capturePool = Executors.newFixedThreadPool(dumper.getDaemonThreads(), new NamedThreadFactory(
+				"daemon-capture"));
+		warmPool = Executors.newFixedThreadPool(dumper.getDaemonThreads(), new NamedThreadFactory("warm"));
+
+		HostFilters hostFilters = new HostFilters();
+		HostListReader.Entry host;
+		while ((host = hosts.next()) != null) {
+			MBeanFilter hostFilter;
+			try {
+				hostFilter = hostFilters.get(host);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not read the filter file of " + host.getKey() + " ("
+						+ host.getFilterFile() + "), the host is skipped: " + e.getMessage());
+				continue;
+			}
+
+			Target target = new Target(host.getKey(), host.getHostData(), hostFilter);
+			List<Target> sameKey = targets.get(target.hostKey);
+			if (sameKey == null) {
+				sameKey = new ArrayList<Target>();
+				targets.put(target.hostKey, sameKey);
+			}
+			if (sameKey.contains(target)) {
+				LOGGER.log(Level.WARNING, "Line " + host.getLineNumber() + " lists " + target + " again, it is skipped");
+			} else {
+				sameKey.add(target);
+			}
+		}
+	}
+
+	/**
+	 * Connects to all hosts and starts to serve requests on the given port of
+	 * the loopback interface.
+	 */
+	public void start(int port) throws IOException {
+		keepAlive.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (List<Target> sameKey : targets.values()) {
+					for (Target target : sameKey) {
+						target.warm();
+					}
+				}
+			}
+		}, 0, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+		server.createContext("/dump", new CaptureHandler(CaptureRequest.Kind.DUMP));
+		server.createContext("/report", new CaptureHandler(CaptureRequest.Kind.REPORT));
+		server.createContext("/burst", new CaptureHandler(CaptureRequest.Kind.BURST));
+		server.createContext("/capture", new CaptureHandler(CaptureRequest.Kind.ALL));
+		server.createContext("/histogram", new CaptureHandler(CaptureRequest.Kind.HISTOGRAM));
+		server.createContext("/hosts", new HostsHandler());
+		server.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory("http")));
+		server.start();
+
+		System.out.println("Serving " + targets.size() + " hosts on http://" + server.getAddress().getHostName()
+				+ ":" + server.getAddress().getPort() + "/");
+	}
+
+	/**
+	 * Stops serving and closes the connections of all hosts.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			((ExecutorService) server.getExecutor()).shutdownNow();
+		}
+		keepAlive.shutdownNow();
+		warmPool.shutdownNow();
+		capturePool.shutdownNow();
+		workers.shutdownNow();
+		dumper.close();
+	}
+
+	private List<Target> select(Map<String, String> parameters) {
+		List<Target> selected = new ArrayList<Target>();
+		String hostKey = parameters.get("host");
+		String group = parameters.get("group");
+
+		if (hostKey != null) {
+			for (String key : hostKey.split(",")) {
+				List<Target> sameKey = targets.get(key.trim());
+				if (sameKey != null) {
+					selected.addAll(sameKey);
+				}
+			}
+		} else if (group != null) {
+			Pattern pattern = Pattern.compile(Pattern.quote(group).replace("*", "\\E.*\\Q"));
+			for (Map.Entry<String, List<Target>> sameKey : targets.entrySet()) {
+				if (pattern.matcher(sameKey.getKey()).matches()) {
+					selected.addAll(sameKey.getValue());
+				}
+			}
+		} else {
+			for (List<Target> sameKey : targets.values()) {
+				selected.addAll(sameKey);
+			}
+		}
+		return selected;
+	}
+
+	private static Map<String, String> getParameters(HttpExchange exchange) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int separator = pair.indexOf('=');
+				if (separator > 0) {
+					parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+							URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+				}
+			}
+		}
+		return parameters;
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = text.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+		exchange.close();
+	}
+
+	private class CaptureHandler implements HttpHandler {
+
+		private final CaptureRequest.Kind kind;
+
+		CaptureHandler(CaptureRequest.Kind kind) {
+			this.kind = kind;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod()) && !"POST".equals(exchange.getRequestMethod())) {
+					sendText(exchange, 405, "Use GET or POST\n");
+					return;
+				}
+
+				Map<String, String> parameters = getParameters(exchange);
+				CaptureRequest request;
+				try {
+					request = createRequest(parameters);
+				} catch (NumberFormatException e) {
+					sendText(exchange, 400, "Invalid number: " + e.getMessage() + "\n");
+					return;
+				}
+
+				List<Target> selected = select(parameters);
+				if (selected.isEmpty()) {
+					sendText(exchange, 404, "No such host\n");
+					return;
+				}
+
+				BlockingQueue<CaptureTask> done = new LinkedBlockingQueue<CaptureTask>();
+				for (Target target : selected) {
+					target.submit(request).addWaiter(done);
+				}
+
+				// chunked, every result is sent as soon as it is there
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+				exchange.sendResponseHeaders(200, 0);
+				Writer out = new OutputStreamWriter(exchange.getResponseBody(), "UTF-8");
+				int succeeded = 0;
+				for (int i = 0; i < selected.size(); i++) {
+					CaptureTask task = done.take();
+					CaptureResult result = getResult(task.target, task);
+					if (result.getStatus() == CaptureResult.Status.SUCCEEDED) {
+						succeeded++;
+					}
+					out.write(result + "\n");
+					out.flush();
+				}
+				out.write("Captured " + succeeded + " of " + selected.size() + " hosts.\n");
+				out.close();
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not answer " + exchange.getRequestURI() + ": " + e.getMessage());
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private CaptureRequest createRequest(Map<String, String> parameters) {
+			if (kind != CaptureRequest.Kind.BURST) {
+				return new CaptureRequest(kind, 0, 0);
+			}
+
+			String samples = parameters.get("samples");
+			String interval = parameters.get("interval");
+			return new CaptureRequest(kind, samples == null ? DEFAULT_BURST_SAMPLES : Math.max(1,
+					Integer.parseInt(samples)), interval == null ? DEFAULT_BURST_INTERVAL : Math.max(0,
+					Long.parseLong(interval)));
+		}
+
+		private CaptureResult getResult(Target target, Future<CaptureResult> future) {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				return new CaptureResult(target.hostKey, target.hostData, CaptureResult.Status.FAILED,
+						String.valueOf(e.getCause()), 0);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new CaptureResult(target.hostKey, target.hostData, CaptureResult.Status.FAILED,
+						"interrupted", 0);
+			}
+		}
+	}
+
+	private class HostsHandler implements HttpHandler {
+
+		public void handle(HttpExchange exchange) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			for (List<Target> sameKey : targets.values()) {
+				for (Target target : sameKey) {
+					sb.append(target).append('\n');
+				}
+			}
+			sendText(exchange, 200, sb.toString());
+		}
+	}
+
+	/**
+	 * A host with its queue of captures, which are run one after the other.
+	 */
+	private class Target implements Runnable {
+
+		private final String hostKey;
+		private final HostData hostData;
+		private final MBeanFilter filter;
+		private final Queue<CaptureTask> queue = new ArrayDeque<CaptureTask>();
+		private boolean running;
+		private final AtomicBoolean warming = new AtomicBoolean();
+
+		Target(String hostKey, HostData hostData, MBeanFilter filter) {
+			this.hostKey = hostKey;
+			this.hostData = hostData;
+			this.filter = filter;
+		}
+
+		synchronized CaptureTask submit(final CaptureRequest request) {
+			for (CaptureTask pending : queue) {
+				if (pending.request.equals(request)) {
+					return pending;
+				}
+			}
+
+			CaptureTask task = new CaptureTask(this, request, new Callable<CaptureResult>() {
+				public CaptureResult call() throws Exception {
+					CaptureResult result = dumper.runWithDeadline(new HostCapture(dumper, hostKey, hostData,
+							filter, outputPrefixes.get(hostKey, hostData), request), workers, dumper
+							.getTriggeredTimeoutMillis(request));
+					dumper.getStats().add(result);
+					return result;
+				}
+			});
+			queue.add(task);
+
+			if (!running) {
+				running = true;
+				capturePool.execute(this);
+			}
+			return task;
+		}
+
+		public void run() {
+			while (true) {
+				CaptureTask pending;
+				synchronized (this) {
+					pending = queue.poll();
+					if (pending == null) {
+						running = false;
+						return;
+					}
+				}
+				pending.run();
+			}
+		}
+
+		/**
+		 * Opens the connection if it is not open, or was lost since.
+		 */
+		void warm() {
+			if (!warming.compareAndSet(false, true)) {
+				return;
+			}
+			warmPool.execute(new Runnable() {
+				public void run() {
+					try {
+						dumper.getConnection(hostData);
+					} catch (IOException e) {
+						LOGGER.log(Level.FINE, "Could not connect to " + hostData + ": " + e.getMessage());
+					} finally {
+						warming.set(false);
+					}
+				}
+			});
+		}
+
+		@Override
+		public int hashCode() {
+			return hostData.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Target && hostKey.equals(((Target) obj).hostKey)
+					&& hostData.equals(((Target) obj).hostData);
+		}
+
+		@Override
+		public String toString() {
+			return hostKey + " (" + hostData + ")";
+		}
+	}
+
+	/**
+	 * A queued capture of a host, which hands itself to every request waiting
+	 * for it as soon as it is done.
+	 */
+	private static class CaptureTask extends FutureTask<CaptureResult> {
+
+		private final Target target;
+		private final CaptureRequest request;
+		private final List<BlockingQueue<CaptureTask>> waiters = new ArrayList<BlockingQueue<CaptureTask>>();
+		private boolean finished;
+
+		CaptureTask(Target target, CaptureRequest request, Callable<CaptureResult> capture) {
+			super(capture);
+			this.target = target;
+			this.request = request;
+		}
+
+		void addWaiter(BlockingQueue<CaptureTask> waiter) {
+			synchronized (waiters) {
+				if (!finished) {
+					waiters.add(waiter);
+					return;
+				}
+			}
+			waiter.add(this);
+		}
+
+		@Override
+		protected void done() {
+			synchronized (waiters) {
+				finished = true;
+			}
+			for (BlockingQueue<CaptureTask> waiter : waiters) {
+				waiter.add(this);
+			}
+		}
+	}
+}
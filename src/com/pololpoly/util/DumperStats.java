@@ -0,0 +1,105 @@
+package com.pololpoly.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The counters of all captures since the dumper started, so that a
+ * long-running dumper can be watched with jconsole like the JVMs it dumps.
+ */
+public class DumperStats implements DumperStatsMBean {
+
+	public static final String OBJECT_NAME = "com.pololpoly.util:type=JVMDumper";
+
+	private final CaptureStats totals = new CaptureStats();
+	private long captures;
+	private long succeeded;
+	private long failed;
+	private long timedOut;
+	private String lastCapture;
+
+	public synchronized void add(CaptureResult result) {
+		captures++;
+		switch (result.getStatus()) {
+		case SUCCEEDED:
+			succeeded++;
+			break;
+		case FAILED:
+			failed++;
+			break;
+		case TIMED_OUT:
+			timedOut++;
+			break;
+		}
+		if (result.getStats() != null) {
+			totals.add(result.getStats());
+		}
+		lastCapture = result.toString();
+	}
+
+	/**
+	 * Registers the counters in the platform MBean server of this JVM.
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name)) {
+			server.registerMBean(this, name);
+		}
+	}
+
+	public synchronized long getCaptures() {
+		return captures;
+	}
+
+	public synchronized long getSucceeded() {
+		return succeeded;
+	}
+
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	public synchronized long getTimedOut() {
+		return timedOut;
+	}
+
+	public long getConnectMillis() {
+		return totals.getPhaseMillis(CaptureStats.Phase.CONNECT);
+	}
+
+	public long getThreadsMillis() {
+		return totals.getPhaseMillis(CaptureStats.Phase.THREADS);
+	}
+
+	public long getReportMillis() {
+		return totals.getPhaseMillis(CaptureStats.Phase.REPORT);
+	}
+
+	public long getRemoteCalls() {
+		return totals.getRemoteCalls();
+	}
+
+	public long getMBeans() {
+		return totals.getMBeans();
+	}
+
+	public long getAttributes() {
+		return totals.getAttributes();
+	}
+
+	public long getBytesWritten() {
+		return totals.getBytesWritten();
+	}
+
+	public long getDumpRetries() {
+		return totals.getDumpRetries();
+	}
+
+	public synchronized String getLastCapture() {
+		return lastCapture;
+	}
+}
@@ -0,0 +1,33 @@
+package com.pololpoly.util;
+
+/**
+ * Management interface of {@link DumperStats}.
+ */
+public interface DumperStatsMBean {
+
+	long getCaptures();
+
+	long getSucceeded();
+
+	long getFailed();
+
+	long getTimedOut();
+
+	long getConnectMillis();
+
+	long getThreadsMillis();
+
+	long getReportMillis();
+
+	long getRemoteCalls();
+
+	long getMBeans();
+
+	long getAttributes();
+
+	long getBytesWritten();
+
+	long getDumpRetries();
+
+	String getLastCapture();
+}
@@ -0,0 +1,208 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts stack samples in a tree of frame paths, so memory grows with the
+ * number of distinct paths rather than the number of samples. The result is
+ * written in the collapsed stack format used by flame graph tools, or as a
+ * self-contained SVG flame graph.
+ */
+public class FrameTrie {
+
+	private static final int SVG_WIDTH = 1200;
+	private static final int SVG_FRAME_HEIGHT = 16;
+	private static final int SVG_TOP = 30;
+	private static final double SVG_MIN_WIDTH = 0.1;
+	private static final double SVG_CHAR_WIDTH = 7;
+
+	private static class Node {
+
+		private final String frame;
+		private Map<String, Node> children;
+		private long selfCount;
+		private long totalCount;
+
+		Node(String frame) {
+			this.frame = frame;
+		}
+
+		Node child(String childFrame) {
+			if (children == null) {
+				children = new HashMap<String, Node>(4);
+			}
+			Node child = children.get(childFrame);
+			if (child == null) {
+				child = new Node(childFrame);
+				children.put(childFrame, child);
+			}
+			return child;
+		}
+
+		List<Node> sortedChildren() {
+			if (children == null) {
+				return Collections.emptyList();
+			}
+			List<String> frames = new ArrayList<String>(children.keySet());
+			Collections.sort(frames);
+			List<Node> sorted = new ArrayList<Node>(frames.size());
+			for (String childFrame : frames) {
+				sorted.add(children.get(childFrame));
+			}
+			return sorted;
+		}
+	}
+
+	private final Node root = new Node("all");
+	private int maxDepth;
+
+	/**
+	 * Adds one sample of a stack, given innermost frame first as in a thread
+	 * dump.
+	 */
+	public void add(String[] stackTrace) {
+		Node node = root;
+		node.totalCount++;
+		for (int i = stackTrace.length - 1; i >= 0; i--) {
+			node = node.child(stackTrace[i]);
+			node.totalCount++;
+		}
+		node.selfCount++;
+		maxDepth = Math.max(maxDepth, stackTrace.length);
+	}
+
+	public long getSampleCount() {
+		return root.totalCount;
+	}
+
+	/**
+	 * Writes one line per path with samples ending in it: the frames from the
+	 * outermost one separated by semicolons, a space and the count.
+	 */
+	public void writeCollapsed(Writer out) throws IOException {
+		StringBuilder path = new StringBuilder();
+		if (root.children != null) {
+			for (Node child : root.sortedChildren()) {
+				writeCollapsed(out, child, path);
+			}
+		}
+	}
+
+	private void writeCollapsed(Writer out, Node node, StringBuilder path) throws IOException {
+		int length = path.length();
+		if (length > 0) {
+			path.append(';');
+		}
+		path.append(node.frame);
+
+		if (node.selfCount > 0) {
+			out.append(path).append(' ').append(String.valueOf(node.selfCount)).append('\n');
+		}
+		for (Node child : node.sortedChildren()) {
+			writeCollapsed(out, child, path);
+		}
+
+		path.setLength(length);
+	}
+
+	/**
+	 * Writes an SVG flame graph with the outermost frames at the bottom.
+	 * Frames too narrow to see are left out, hovering shows the full name and
+	 * sample count of a frame.
+	 */
+	public void writeSvg(Writer out, String title) throws IOException {
+		int height = SVG_TOP + (maxDepth + 1) * SVG_FRAME_HEIGHT + 10;
+
+		out.write("<?xml version='1.0' standalone='no'?>\n");
+		out.write("<svg version='1.1' width='" + SVG_WIDTH + "' height='" + height
+				+ "' xmlns='http://www.w3.org/2000/svg'>\n");
+		out.write("<style>text { font-family: monospace; font-size: 12px; } rect:hover { stroke: black; }</style>\n");
+		out.write("<rect x='0' y='0' width='" + SVG_WIDTH + "' height='" + height + "' fill='#f8f8f8'/>\n");
+		out.write("<text x='" + (SVG_WIDTH / 2) + "' y='20' text-anchor='middle'>");
+		writeXml(out, title + " (" + root.totalCount + " samples)");
+		out.write("</text>\n");
+
+		if (root.totalCount > 0) {
+			writeSvgFrame(out, root, 0, 0, SVG_WIDTH / (double) root.totalCount, height);
+		}
+		out.write("</svg>\n");
+	}
+
+	private void writeSvgFrame(Writer out, Node node, int depth, double x, double scale, int height)
+			throws IOException {
+		double width = node.totalCount * scale;
+		if (width < SVG_MIN_WIDTH) {
+			return;
+		}
+
+		double y = height - 10 - (depth + 1) * SVG_FRAME_HEIGHT;
+		String label = node.frame + " (" + node.totalCount + " samples, "
+				+ String.format(Locale.ENGLISH, "%.2f", 100.0 * node.totalCount / root.totalCount) + "%)";
+
+		out.write("<g><title>");
+		writeXml(out, label);
+		out.write("</title><rect x='" + format(x) + "' y='" + format(y) + "' width='" + format(width)
+				+ "' height='" + (SVG_FRAME_HEIGHT - 1) + "' fill='" + color(node.frame) + "' rx='2'/>");
+
+		int fitting = (int) ((width - 6) / SVG_CHAR_WIDTH);
+		if (fitting >= 3) {
+			out.write("<text x='" + format(x + 3) + "' y='" + format(y + SVG_FRAME_HEIGHT - 4) + "'>");
+			writeXml(out, node.frame.length() <= fitting ? node.frame : node.frame.substring(0, fitting - 2) + "..");
+			out.write("</text>");
+		}
+		out.write("</g>\n");
+
+		double childX = x;
+		for (Node child : node.sortedChildren()) {
+			writeSvgFrame(out, child, depth + 1, childX, scale, height);
+			childX += child.totalCount * scale;
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ENGLISH, "%.1f", value);
+	}
+
+	/**
+	 * Warm colours that stay the same for a frame across graphs.
+	 */
+	private static String color(String frame) {
+		int hash = frame.hashCode();
+		int red = 205 + ((hash & 0xFF) % 50);
+		int green = 80 + (((hash >> 8) & 0xFF) % 150);
+		int blue = ((hash >> 16) & 0xFF) % 55;
+		return "rgb(" + red + "," + green + "," + blue + ")";
+	}
+
+	private static void writeXml(Writer out, String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				out.write("&lt;");
+				break;
+			case '>':
+				out.write("&gt;");
+				break;
+			case '&':
+				out.write("&amp;");
+				break;
+			case '\'':
+				out.write("&apos;");
+				break;
+			case '"':
+				out.write("&quot;");
+				break;
+			default:
+				out.write(c);
+			}
+		}
+	}
+}
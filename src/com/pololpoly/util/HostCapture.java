@@ -0,0 +1,223 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * Takes the thread dump and the MBean report of one host, at the same time
+ * for a single dump, or only the part given by its {@link CaptureRequest}. A
+ * capture which runs past its deadline is aborted from another thread by
+ * closing the connection of its host.
+ */
+class HostCapture {
+
+	private static final Logger LOGGER = Logger.getLogger(HostCapture.class.getName());
+
+	/**
+	 * Reads the reports while the thread dumps are taken, one thread per
+	 * running capture.
+	 */
+	private static final ExecutorService REPORT_POOL = Executors.newCachedThreadPool(new NamedThreadFactory(
+			"report"));
+
+	private final JVMDumper dumper;
+	private final String hostKey;
+	private final HostData hostData;
+	private final MBeanFilter filter;
+	private final String outputPrefix;
+	private final CaptureRequest request;
+	private final CaptureStats stats = new CaptureStats();
+
+	private volatile ConnectionManager.Lease lease;
+	private volatile boolean aborted;
+
+	/**
+	 * @param filter
+	 *            the host's own MBean filter rules, null if it has none
+	 */
+	HostCapture(JVMDumper dumper, String hostKey, HostData hostData, MBeanFilter filter, String outputPrefix) {
+		this(dumper, hostKey, hostData, filter, outputPrefix, CaptureRequest.ALL);
+	}
+
+	HostCapture(JVMDumper dumper, String hostKey, HostData hostData, MBeanFilter filter, String outputPrefix,
+			CaptureRequest request) {
+		this.dumper = dumper;
+		this.hostKey = hostKey;
+		this.hostData = hostData;
+		this.filter = filter;
+		this.outputPrefix = outputPrefix;
+		this.request = request;
+	}
+
+	String getHostKey() {
+		return hostKey;
+	}
+
+	HostData getHostData() {
+		return hostData;
+	}
+
+	String getOutputPrefix() {
+		return outputPrefix;
+	}
+
+	CaptureResult run() {
+		ConnectionManager.Lease current = dumper.getConnectionManager().lease(hostData);
+		lease = current;
+		try {
+			if (aborted) {
+				current.abort();
+			}
+			return capture(current);
+		} finally {
+			current.release();
+		}
+	}
+
+	private CaptureResult capture(ConnectionManager.Lease lease) {
+		long start = System.currentTimeMillis();
+
+		final MBeanServerConnection connection;
+		try {
+			connection = stats.instrument(lease.getConnection());
+		} catch (IOException e) {
+			endPhase(CaptureStats.Phase.CONNECT, start);
+			return failed(e, start);
+		} catch (RuntimeException e) {
+			endPhase(CaptureStats.Phase.CONNECT, start);
+			return failed(e, start);
+		}
+		final long connected = endPhase(CaptureStats.Phase.CONNECT, start);
+
+		/*
+		 * The report is read on another thread while a single thread dump is
+		 * taken, both share the connection. Samples, profiles and bursts are
+		 * taken first, so the calls of the report do not show up in them.
+		 */
+		Runnable report = new Runnable() {
+			public void run() {
+				dumper.createReportCreator(filter).createHtmlReport(outputPrefix + "-mbean.html", connection);
+				endPhase(CaptureStats.Phase.REPORT, connected);
+			}
+		};
+		Future<?> pendingReport = null;
+		if (request.includesReport() && request.includesThreads() && !request.isBurst() && dumper.isSingleDump()) {
+			pendingReport = REPORT_POOL.submit(report);
+		}
+
+		try {
+			if (request.isBurst()) {
+				dumper.sampleToFile(outputPrefix + "-burst.tdump", connection, request.getSamples(),
+						request.getIntervalMillis());
+			} else if (request.includesThreads()) {
+				dumper.captureThreads(outputPrefix, hostKey + "-" + hostData.getHostName(), connection);
+			}
+			endPhase(CaptureStats.Phase.THREADS, connected);
+
+			if (pendingReport != null) {
+				pendingReport.get();
+			} else if (request.includesReport()) {
+				report.run();
+			}
+
+			// last, its full GC stops the host
+			if (request.includesHistogram()) {
+				dumper.histogramToFile(outputPrefix + "-histogram.txt", connection);
+			}
+
+			return result(CaptureResult.Status.SUCCEEDED, null, start);
+
+		} catch (IOException e) {
+			endPhase(CaptureStats.Phase.THREADS, connected);
+			awaitReport(pendingReport);
+			return failed(e, start);
+		} catch (DumpException e) {
+			endPhase(CaptureStats.Phase.THREADS, connected);
+			awaitReport(pendingReport);
+			return failed(e, start);
+		} catch (RuntimeException e) {
+			// e.g. a SecurityException of the remote server, which must not
+			// stop the captures of the other hosts
+			endPhase(CaptureStats.Phase.THREADS, connected);
+			awaitReport(pendingReport);
+			return failed(e, start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (pendingReport != null) {
+				pendingReport.cancel(true);
+			}
+			return result(CaptureResult.Status.FAILED, "interrupted", start);
+		} catch (ExecutionException e) {
+			LOGGER.log(Level.WARNING, "Could not create a report: " + e.getCause(), e.getCause());
+			return result(CaptureResult.Status.FAILED, "Report error: " + e.getCause(), start);
+		}
+	}
+
+	/**
+	 * Lets the report finish after the thread dump failed, so that its file
+	 * is complete when the capture is reported.
+	 */
+	private void awaitReport(Future<?> pendingReport) {
+		if (pendingReport == null) {
+			return;
+		}
+		try {
+			pendingReport.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			pendingReport.cancel(true);
+		} catch (ExecutionException e) {
+			LOGGER.log(Level.WARNING, "Could not create a report: " + e.getCause(), e.getCause());
+		}
+	}
+
+	private CaptureResult failed(IOException e, long start) {
+		LOGGER.log(Level.WARNING, "IO error occured : " + e.getMessage());
+		return result(CaptureResult.Status.FAILED, "IO error: " + e.getMessage(), start);
+	}
+
+	private CaptureResult failed(DumpException e, long start) {
+		LOGGER.log(Level.WARNING, "Error while taking a dump : " + e.getMessage());
+		return result(CaptureResult.Status.FAILED, "Dump error: " + e.getMessage(), start);
+	}
+
+	private CaptureResult failed(RuntimeException e, long start) {
+		LOGGER.log(Level.WARNING, "Unexpected error while capturing " + hostKey + ": " + e, e);
+		return result(CaptureResult.Status.FAILED, "Error: " + e, start);
+	}
+
+	/**
+	 * Gives up the connection of a capture that is still running. Once no
+	 * other capture of the host uses it, it is closed, which makes any pending
+	 * RMI call on it fail instead of blocking forever.
+	 */
+	void abort() {
+		aborted = true;
+		ConnectionManager.Lease current = lease;
+		if (current != null) {
+			current.abort();
+		}
+	}
+
+	CaptureResult timedOut(long timeoutMillis) {
+		return new CaptureResult(hostKey, hostData, CaptureResult.Status.TIMED_OUT,
+				"no result after " + timeoutMillis + " ms, output files may be incomplete", timeoutMillis, stats);
+	}
+
+	private long endPhase(CaptureStats.Phase phase, long phaseStart) {
+		long now = System.currentTimeMillis();
+		stats.addPhase(phase, now - phaseStart);
+		return now;
+	}
+
+	private CaptureResult result(CaptureResult.Status status, String message, long start) {
+		return new CaptureResult(hostKey, hostData, status, message, System.currentTimeMillis() - start, stats);
+	}
+}
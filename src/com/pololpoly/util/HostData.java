@@ -5,8 +5,24 @@ import java.util.logging.Logger;
 
 public class HostData {
 
+	/**
+	 * How the JVM of a host is reached.
+	 */
+	public enum Type {
+		/** over RMI, host:port[:user:password] */
+		REMOTE,
+		/** a JVM on this machine by process ID, pid:1234 */
+		PID,
+		/** a JVM on this machine by main class or jar, main:org.example.Main */
+		MAIN,
+		/** the platform MBeans of the dumper itself, self */
+		SELF
+	}
+
 	private static final Logger LOGGER = Logger.getLogger(HostData.class.getName());
 
+	private Type type = Type.REMOTE;
+	private String target;
 	private String hostName;
 	private int port;
 	private String userName;
@@ -14,6 +30,24 @@ public class HostData {
 
 	public HostData(String[] data) {
 
+		if (data.length == 1 && "self".equals(data[0])) {
+			type = Type.SELF;
+			hostName = "self";
+			userName = "";
+			password = "";
+			return;
+		}
+
+		if (data.length == 2 && ("pid".equals(data[0]) || "main".equals(data[0]))) {
+			type = "pid".equals(data[0]) ? Type.PID : Type.MAIN;
+			target = data[1];
+			// used in file names, the host of a local JVM is this one
+			hostName = (data[0] + "-" + target).replaceAll("[^A-Za-z0-9._-]", "_");
+			userName = "";
+			password = "";
+			return;
+		}
+
 		if (data.length > 1) {
 			hostName = data[0];
 			try {
@@ -34,6 +68,17 @@ public class HostData {
 		}
 	}
 
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the process ID or main class of a local JVM
+	 */
+	public String getTarget() {
+		return target;
+	}
+
 	public String getHostName() {
 		return hostName;
 	}
@@ -50,4 +95,50 @@ public class HostData {
 		return password;
 	}
 
+	@Override
+	public int hashCode() {
+		int result = type.hashCode();
+		result = 31 * result + (hostName == null ? 0 : hostName.hashCode());
+		result = 31 * result + (target == null ? 0 : target.hashCode());
+		result = 31 * result + port;
+		result = 31 * result + (userName == null ? 0 : userName.hashCode());
+		result = 31 * result + (password == null ? 0 : password.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof HostData)) {
+			return false;
+		}
+
+		HostData other = (HostData) obj;
+		return type == other.type && port == other.port && equal(hostName, other.hostName) && equal(target, other.target)
+				&& equal(userName, other.userName) && equal(password, other.password);
+	}
+
+	/**
+	 * @return host:port, or the process ID or main class of a local JVM
+	 */
+	@Override
+	public String toString() {
+		switch (type) {
+		case PID:
+			return "pid " + target;
+		case MAIN:
+			return "main class " + target;
+		case SELF:
+			return "self";
+		default:
+			return hostName + ":" + port;
+		}
+	}
+
+	private static boolean equal(String first, String second) {
+		return first == null ? second == null : first.equals(second);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package com.pololpoly.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the MBean filter files named in the host list, each file once for
+ * all the hosts that share it.
+ */
+class HostFilters {
+
+	private final Map<String, MBeanFilter> filters = new HashMap<String, MBeanFilter>();
+
+	/**
+	 * @return the host's own MBean filter, null if it has none
+	 * @throws IOException
+	 *             if its filter file cannot be read
+	 */
+	synchronized MBeanFilter get(HostListReader.Entry host) throws IOException {
+		String filterFile = host.getFilterFile();
+		if (filterFile == null) {
+			return null;
+		}
+
+		MBeanFilter filter = filters.get(filterFile);
+		if (filter == null) {
+			filter = MBeanFilter.load(new File(filterFile));
+			filters.put(filterFile, filter);
+		}
+		return filter;
+	}
+}
@@ -0,0 +1,205 @@
+package com.pololpoly.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a server list one host at a time, in the order of the file and with
+ * duplicate lines kept. Each line is
+ *
+ * <pre>
+ * {FileNamePrefix},{connection}[,{filter-file}]
+ * </pre>
+ *
+ * A line may describe a range of hosts with [from-to], e.g.
+ *
+ * <pre>
+ * app[01-64],app[01-64].example.com:9010
+ * </pre>
+ *
+ * is read as the hosts app01 to app64; numbers keep the width of from. The
+ * same range written twice on a line takes the same value, different ranges
+ * are combined with each other. Ranges are expanded one host at a time, so a
+ * large range takes no memory.
+ */
+public class HostListReader implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(HostListReader.class.getName());
+
+	private static final Pattern RANGE = Pattern.compile("\\[(\\d+)-(\\d+)\\]");
+
+	private final BufferedReader reader;
+	private final String source;
+	private int lineNumber;
+
+	// the line being expanded, with its distinct ranges
+	private String line;
+	private final List<String> ranges = new ArrayList<String>();
+	private long[] from;
+	private long[] to;
+	private long[] current;
+	private int[] widths;
+
+	public HostListReader(String fileName) throws IOException {
+		this(new FileReader(fileName), fileName);
+	}
+
+	public HostListReader(Reader reader, String source) {
+		this.reader = new BufferedReader(reader);
+		this.source = source;
+	}
+
+	/**
+	 * @return the next host, or null at the end of the file
+	 */
+	public Entry next() throws IOException {
+		while (true) {
+			if (line != null) {
+				Entry entry = nextInRange();
+				if (entry != null) {
+					return entry;
+				}
+				line = null;
+			}
+
+			String next = reader.readLine();
+			if (next == null) {
+				return null;
+			}
+			lineNumber++;
+
+			if (next.split(",").length < 2) {
+				continue;
+			}
+			if (next.indexOf('[') < 0 || !startRange(next)) {
+				return toEntry(next);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the line has no ranges
+	 */
+	private boolean startRange(String text) {
+		ranges.clear();
+		Matcher matcher = RANGE.matcher(text);
+		while (matcher.find()) {
+			if (!ranges.contains(matcher.group())) {
+				ranges.add(matcher.group());
+			}
+		}
+		if (ranges.isEmpty()) {
+			// brackets that are not a range, e.g. in a password
+			return false;
+		}
+
+		from = new long[ranges.size()];
+		to = new long[ranges.size()];
+		widths = new int[ranges.size()];
+		for (int i = 0; i < ranges.size(); i++) {
+			matcher = RANGE.matcher(ranges.get(i));
+			matcher.matches();
+			try {
+				from[i] = Long.parseLong(matcher.group(1));
+				to[i] = Long.parseLong(matcher.group(2));
+			} catch (NumberFormatException e) {
+				from[i] = 1;
+				to[i] = 0;
+			}
+			widths[i] = matcher.group(1).length();
+			if (from[i] > to[i]) {
+				LOGGER.log(Level.WARNING, source + ":" + lineNumber + ": invalid range " + ranges.get(i)
+						+ ", the line is skipped");
+				return true;
+			}
+		}
+
+		line = text;
+		current = from.clone();
+		return true;
+	}
+
+	private Entry nextInRange() {
+		if (current[0] > to[0]) {
+			return null;
+		}
+
+		String text = line;
+		for (int i = 0; i < ranges.size(); i++) {
+			String value = Long.toString(current[i]);
+			while (value.length() < widths[i]) {
+				value = "0" + value;
+			}
+			text = text.replace(ranges.get(i), value);
+		}
+
+		// count like an odometer, the last range fastest
+		for (int i = ranges.size() - 1; i >= 0; i--) {
+			if (++current[i] <= to[i] || i == 0) {
+				break;
+			}
+			current[i] = from[i];
+		}
+
+		return toEntry(text);
+	}
+
+	private Entry toEntry(String text) {
+		String[] columns = text.split(",");
+		String filterFile = columns.length > 2 && columns[2].trim().length() > 0 ? columns[2].trim() : null;
+		return new Entry(columns[0], columns[1], filterFile, lineNumber);
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * One host of the list.
+	 */
+	public static class Entry {
+
+		private final String key;
+		private final String connection;
+		private final String filterFile;
+		private final int lineNumber;
+
+		Entry(String key, String connection, String filterFile, int lineNumber) {
+			this.key = key;
+			this.connection = connection;
+			this.filterFile = filterFile;
+			this.lineNumber = lineNumber;
+		}
+
+		/**
+		 * @return the file name prefix
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public HostData getHostData() {
+			return new HostData(connection.split(":"));
+		}
+
+		/**
+		 * @return the host's own MBean filter file, null if it has none
+		 */
+		public String getFilterFile() {
+			return filterFile;
+		}
+
+		public int getLineNumber() {
+			return lineNumber;
+		}
+	}
+}
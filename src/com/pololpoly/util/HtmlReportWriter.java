@@ -0,0 +1,233 @@
+package com.pololpoly.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Streams the MBean report to a file. Every value is HTML escaped and
+ * rendered element by element, so a single attribute never needs more than
+ * {@code maxValueLength} characters of output and large arrays or composite
+ * values are not turned into one huge String first.
+ */
+public class HtmlReportWriter implements Closeable {
+
+	public static final int DEFAULT_MAX_VALUE_LENGTH = 64 * 1024;
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final String ERROR_COLOR = "#660000";
+
+	private final Writer out;
+	private final int maxValueLength;
+
+	private int remaining;
+
+	public HtmlReportWriter(File file, int maxValueLength) throws IOException {
+		this(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), maxValueLength);
+	}
+
+	public HtmlReportWriter(Writer writer, int maxValueLength) {
+		this.out = new BufferedWriter(writer, BUFFER_SIZE);
+		this.maxValueLength = maxValueLength;
+	}
+
+	public void startReport() throws IOException {
+		out.write("<html>\n");
+		out.write("<head><meta http-equiv='Content-Type' content='text/html; charset=UTF-8'>"
+				+ "<title>JMX Mbean Listing</title></head>\n");
+		out.write("<body><table>\n");
+	}
+
+	public void endReport() throws IOException {
+		out.write("</table></body></html>\n");
+	}
+
+	public void startMBean(ObjectName mbeanName) throws IOException {
+		out.write("<tr><td colspan='4'>&nbsp;</td></tr>\n");
+		out.write("<tr><td>MBean:</td><td colspan='3'>");
+		writeEscaped(mbeanName.toString());
+		out.write("</td></tr>\n");
+	}
+
+	public void attribute(String name, String type, Object value) throws IOException {
+		startAttribute(name, type);
+
+		if (value == null) {
+			out.write("<font color='" + ERROR_COLOR + "'>null</font>");
+		} else {
+			remaining = maxValueLength;
+			if (!writeValue(value)) {
+				out.write("<font color='" + ERROR_COLOR + "'>... (truncated at " + maxValueLength
+						+ " characters)</font>");
+			}
+		}
+
+		endAttribute();
+	}
+
+	public void attributeError(String name, String type) throws IOException {
+		startAttribute(name, type);
+		out.write("<font color='" + ERROR_COLOR + "'>could not get the ");
+		writeEscaped(name);
+		out.write(" attribute</font>");
+		endAttribute();
+	}
+
+	public void error(String message) throws IOException {
+		out.write("<tr><td colspan=3>");
+		writeEscaped(String.valueOf(message));
+		out.write("</td></tr>\n");
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void startAttribute(String name, String type) throws IOException {
+		out.write("<tr><td>&nbsp;</td><td>");
+		writeEscaped(name);
+		out.write("</td><td>");
+		writeEscaped(type);
+		out.write("</td><td>");
+	}
+
+	private void endAttribute() throws IOException {
+		out.write("</td></tr>\n");
+	}
+
+	/**
+	 * @return false once the value budget of the current attribute is used up
+	 */
+	private boolean writeValue(Object value) throws IOException {
+		if (value == null) {
+			return writeBounded("null");
+		}
+
+		if (value instanceof CompositeData) {
+			CompositeData data = (CompositeData) value;
+			return writeBounded("{") && writeEntries(data.getCompositeType().keySet().iterator(), data)
+					&& writeBounded("}");
+		}
+
+		if (value instanceof TabularData) {
+			return writeBounded("[") && writeElements(((TabularData) value).values().iterator()) && writeBounded("]");
+		}
+
+		if (value instanceof Map<?, ?>) {
+			return writeBounded("{") && writeMap((Map<?, ?>) value) && writeBounded("}");
+		}
+
+		if (value instanceof Iterable<?>) {
+			return writeBounded("[") && writeElements(((Iterable<?>) value).iterator()) && writeBounded("]");
+		}
+
+		if (value.getClass().isArray()) {
+			return writeBounded("[") && writeArray(value) && writeBounded("]");
+		}
+
+		return writeBounded(value.toString());
+	}
+
+	private boolean writeEntries(Iterator<String> keys, CompositeData data) throws IOException {
+		boolean first = true;
+		while (keys.hasNext()) {
+			String key = keys.next();
+			if ((!first && !writeBounded(", ")) || !writeBounded(key) || !writeBounded("=")
+					|| !writeValue(data.get(key))) {
+				return false;
+			}
+			first = false;
+		}
+		return true;
+	}
+
+	private boolean writeMap(Map<?, ?> map) throws IOException {
+		boolean first = true;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			if ((!first && !writeBounded(", ")) || !writeValue(entry.getKey()) || !writeBounded("=")
+					|| !writeValue(entry.getValue())) {
+				return false;
+			}
+			first = false;
+		}
+		return true;
+	}
+
+	private boolean writeElements(Iterator<?> elements) throws IOException {
+		boolean first = true;
+		while (elements.hasNext()) {
+			if ((!first && !writeBounded(", ")) || !writeValue(elements.next())) {
+				return false;
+			}
+			first = false;
+		}
+		return true;
+	}
+
+	private boolean writeArray(Object array) throws IOException {
+		int length = Array.getLength(array);
+		for (int i = 0; i < length; i++) {
+			if ((i > 0 && !writeBounded(", ")) || !writeValue(Array.get(array, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean writeBounded(String text) throws IOException {
+		if (text.length() <= remaining) {
+			writeEscaped(text, 0, text.length());
+			remaining -= text.length();
+			return true;
+		}
+
+		writeEscaped(text, 0, remaining);
+		remaining = 0;
+		return false;
+	}
+
+	private void writeEscaped(String text) throws IOException {
+		writeEscaped(text, 0, text.length());
+	}
+
+	private void writeEscaped(String text, int start, int end) throws IOException {
+		int from = start;
+		for (int i = start; i < end; i++) {
+			String entity;
+			switch (text.charAt(i)) {
+			case '<':
+				entity = "&lt;";
+				break;
+			case '>':
+				entity = "&gt;";
+				break;
+			case '&':
+				entity = "&amp;";
+				break;
+			case '"':
+				entity = "&quot;";
+				break;
+			case '\'':
+				entity = "&#39;";
+				break;
+			default:
+				continue;
+			}
+			out.write(text, from, i - from);
+			out.write(entity);
+			from = i + 1;
+		}
+		out.write(text, from, end - from);
+	}
+}
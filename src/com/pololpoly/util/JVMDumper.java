@@ -1,54 +1,289 @@
 package com.pololpoly.util;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
 import javax.management.MBeanServerConnection;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 
 public class JVMDumper {
 
+	/**
+	 * How the thread dumps of a host are written.
+	 */
+	public enum ThreadFormat {
+		/** the full dump as .tdump text */
+		TEXT,
+		/** a compact .tsamples file, see {@link ThreadSampleWriter} */
+		BINARY,
+		/** each unique stack once with its thread count, see {@link StackAggregator} */
+		UNIQUE,
+		/** the contended locks over all samples, see {@link ContentionAnalyzer} */
+		CONTENTION,
+		/** the changes from the first to the last sample, see {@link ThreadDumpDiff} */
+		DIFF
+	}
+
 	private static final String DATE_FORMAT = "yyyy-MM-dd-HH-mm-ss";
 	private static final Logger LOGGER = Logger.getLogger(JVMDumper.class.getName());
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final int DUMP_BUFFER_SIZE = 256 * 1024;
+	private static final int QUEUED_HOSTS_PER_THREAD = 2;
+	private static final int DEFAULT_WATCH_SAMPLES = 10;
+	private static final long DEFAULT_COOLDOWN_SECONDS = 300;
+	private static final long DEFAULT_TRIGGERED_CAPTURE_TIMEOUT_MILLIS = 60 * 1000;
+	private static final String USAGE = "Usage: java -jar JVMDumper [-parallel <hosts>] [-timeout <seconds>] [-maxvalue <chars>] [-samples <count>] [-interval <millis>] [-format text|binary|unique|contention|diff] [-profile <seconds>] [-profilerate <per-second>] [-flamegraph true|false] [-cpu <top-threads>] [-filter <filter-file>] [-infocache <cache-file>] [-infocachesize <entries>] [-mbeanreads <count>] [-compress none|gzip|deflate] [-deadlockcheck true|false] [-histogram true|false (runs a full GC)] [-poll <metrics-file>] [-pollthreads <hosts>] [-pollinterval <millis>] [-pollduration <seconds>] [-watch <rules-file>] [-cooldown <seconds>] [-daemon <port>] [-daemonthreads <hosts>] <host-file> <output-dir-path>";
+
+	private int parallelism = 1;
+	private long hostTimeoutMillis = 0;
+	private int maxValueLength = HtmlReportWriter.DEFAULT_MAX_VALUE_LENGTH;
+	private final ConnectionManager connectionManager = new ConnectionManager();
+	private final DumperStats stats = new DumperStats();
+
+	private int sampleCount = 1;
+	private long sampleIntervalMillis = 1000;
+	private ThreadFormat threadFormat = ThreadFormat.TEXT;
+	private long profileSeconds;
+	private int profileRate = 20;
+	private boolean flameGraph;
+	private int cpuTopCount;
+	private MBeanFilter filter = MBeanFilter.ALL;
+	private Compression compression = Compression.NONE;
+	private int concurrentReads = ReportCreator.DEFAULT_CONCURRENT_READS;
+	private boolean deadlockCheck;
+	private boolean classHistogram;
+	private List<MetricSpec> metrics;
+	private long pollIntervalMillis = 1000;
+	private int pollThreads = MetricScheduler.DEFAULT_THREADS;
+	private int daemonThreads = DumperDaemon.DEFAULT_THREADS;
+	private long pollDurationMillis;
+	private List<WatchRule> watchRules;
+	private long cooldownMillis = DEFAULT_COOLDOWN_SECONDS * 1000;
+
+	/**
+	 * Sets how many hosts are captured at the same time, 1 captures the hosts
+	 * one after another.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the time a single host may take to connect and write its dump and
+	 * report, 0 means no deadline.
+	 */
+	public void setHostTimeout(long timeout, TimeUnit unit) {
+		this.hostTimeoutMillis = Math.max(0, unit.toMillis(timeout));
+	}
+
+	/**
+	 * Sets the number of characters after which an attribute value is cut off
+	 * in the MBean report.
+	 */
+	public void setMaxValueLength(int maxValueLength) {
+		this.maxValueLength = maxValueLength;
+	}
+
+	/**
+	 * Sets how many thread dumps are taken from every host, and how far apart.
+	 * More than one dump is written to the same .tdump file.
+	 */
+	public void setSampling(int count, long interval, TimeUnit unit) {
+		this.sampleCount = Math.max(1, count);
+		this.sampleIntervalMillis = unit.toMillis(interval);
+	}
+
+	public void setThreadFormat(ThreadFormat threadFormat) {
+		this.threadFormat = threadFormat;
+	}
+
+	/**
+	 * Profiles each host for the given time instead of taking thread dumps,
+	 * see {@link StackProfiler}.
+	 */
+	public void setProfiling(long seconds, int samplesPerSecond, boolean flameGraph) {
+		this.profileSeconds = seconds;
+		this.profileRate = samplesPerSecond;
+		this.flameGraph = flameGraph;
+	}
+
+	/**
+	 * Writes the threads with the highest CPU and allocation rate between
+	 * samples instead of the thread dumps, see {@link CpuAttribution}.
+	 */
+	public void setCpuTopCount(int cpuTopCount) {
+		this.cpuTopCount = cpuTopCount;
+	}
+
+	/**
+	 * Sets the MBeans and attributes in the report of every host. A host can
+	 * add its own rules with a filter file in the third column of the server
+	 * list.
+	 */
+	public void setFilter(MBeanFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Polls the given metrics of every host into a time series file instead
+	 * of capturing the hosts, see {@link MetricScheduler}.
+	 * 
+	 * @param duration
+	 *            how long to poll, 0 polls until the dumper is stopped
+	 */
+	public void setPolling(List<MetricSpec> metrics, long interval, long duration, TimeUnit unit) {
+		this.metrics = metrics;
+		this.pollIntervalMillis = Math.max(1, unit.toMillis(interval));
+		this.pollDurationMillis = Math.max(0, unit.toMillis(duration));
+	}
+
+	/**
+	 * Sets how many hosts are polled at the same time, independent of the
+	 * captures running in parallel. A poll that takes longer than the host
+	 * timeout, or {@link MetricScheduler#DEFAULT_TIMEOUT_MILLIS} without one,
+	 * is aborted.
+	 */
+	public void setPollThreads(int pollThreads) {
+		this.pollThreads = Math.max(1, pollThreads);
+	}
+
+	/**
+	 * Sets how many hosts the daemon captures at the same time, independent
+	 * of the parallelism of a normal run.
+	 */
+	public void setDaemonThreads(int daemonThreads) {
+		this.daemonThreads = Math.max(1, daemonThreads);
+	}
+
+	int getDaemonThreads() {
+		return daemonThreads;
+	}
 
-	private boolean isEmpty(String string) {
-		return string == null || string.length() == 0;
+	/**
+	 * Watches the hosts instead of capturing them: the metrics of the rules
+	 * are polled every poll interval, and a host on which a rule holds gets a
+	 * burst of thread dumps and an MBean report, at most once per cooldown.
+	 */
+	public void setWatching(List<WatchRule> rules, long cooldown, TimeUnit unit) {
+		this.watchRules = rules;
+		this.cooldownMillis = Math.max(0, unit.toMillis(cooldown));
+	}
+
+	/**
+	 * Takes a class histogram of every host after its thread dump and report,
+	 * only in a normal run with a single dump. The histogram runs a full GC
+	 * on the host.
+	 */
+	public void setClassHistogram(boolean classHistogram) {
+		this.classHistogram = classHistogram;
+	}
+
+	/**
+	 * Sets how many MBeans of a host are read at the same time for its report.
+	 */
+	public void setConcurrentReads(int concurrentReads) {
+		this.concurrentReads = Math.max(1, concurrentReads);
+	}
+
+	/**
+	 * Sets how the thread dumps and reports are compressed while they are
+	 * written.
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Compares the deadlocks found in the thread dumps with the ones the JVM
+	 * reports, which costs extra remote calls for every host.
+	 */
+	public void setDeadlockCheck(boolean deadlockCheck) {
+		this.deadlockCheck = deadlockCheck;
+	}
+
+	public ReportCreator createReportCreator(MBeanFilter hostFilter) {
+		ReportCreator reportCreator = new ReportCreator();
+		reportCreator.setMaxValueLength(maxValueLength);
+		reportCreator.setCompression(compression);
+		reportCreator.setFilter(hostFilter == null ? filter : filter.and(hostFilter));
+		reportCreator.setConcurrentReads(concurrentReads);
+		return reportCreator;
+	}
+
+	public ConnectionManager getConnectionManager() {
+		return connectionManager;
 	}
 
 	public MBeanServerConnection getConnection(HostData hostData) throws IOException {
+		return connectionManager.getConnection(hostData);
+	}
 
-		Map<String, String[]> properties = new Hashtable<String, String[]>();
+	public DumperStats getStats() {
+		return stats;
+	}
 
-		if (!isEmpty(hostData.getUserName()) && !isEmpty(hostData.getPassword())) {
-			System.out.println("User name is " + hostData.getUserName());
-			System.out.println("Password is " + hostData.getPassword());
-			properties.put("jmx.remote.credentials", new String[] { hostData.getUserName(), hostData.getPassword() });
-		} else {
-			System.out.println("No credentials provided.");
+	/**
+	 * Registers the counters of all captures as the MBean
+	 * {@value DumperStats#OBJECT_NAME}, for the modes that keep the dumper
+	 * running.
+	 */
+	public void registerStatsMBean() {
+		try {
+			stats.register();
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Could not register the statistics MBean: " + e.getMessage());
 		}
+	}
 
-		String connectionString = "/jndi/rmi://" + hostData.getHostName() + ":" + hostData.getPort() + "/jmxrmi";
-		System.out.println("Connecting to " + connectionString);
-
-		JMXServiceURL url = new JMXServiceURL("rmi", "", 0, connectionString);
-		JMXConnector jmxc = JMXConnectorFactory.connect(url, properties);
+	/**
+	 * Closes all connections that were opened by this dumper.
+	 */
+	public void close() {
+		connectionManager.close();
+	}
 
-		return jmxc.getMBeanServerConnection();
+	private static void saveInfoCache(File file) {
+		MBeanInfoCache cache = MBeanInfoCache.getDefault();
+		System.out.println("MBeanInfo cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, saving "
+				+ cache.size() + " entries to " + file);
+		try {
+			cache.save(file);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not save the MBeanInfo cache (" + file + "): " + e.getMessage());
+		}
 	}
 
 	private ThreadMXBean getThreadMxBean(MBeanServerConnection connection) throws IOException {
@@ -56,68 +291,660 @@ public class JVMDumper {
 				ThreadMXBean.class);
 	}
 
+	/**
+	 * @param connection
+	 *            the bytes written are counted for its host, see
+	 *            {@link CaptureStats#of(MBeanServerConnection)}
+	 */
+	private Writer openWriter(String filePath, MBeanServerConnection connection) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(compression.open(filePath, CaptureStats.of(connection))),
+				DUMP_BUFFER_SIZE);
+	}
+
 	public void dumpToFile(String filePath, MBeanServerConnection connection) throws IOException, DumpException {
-		System.out.println("Creating thread dump to file " + filePath);
+		System.out.println("Creating thread dump to file " + compression.getFileName(filePath));
 
 		if (filePath != null) {
 
-			PrintStream p = new PrintStream(new File(filePath));
+			Writer out = openWriter(filePath, connection);
 			try {
 				ThreadMXBean threadMxBean = getThreadMxBean(connection);
 				ThreadDumper dumper = new ThreadDumper(connection);
 
-				p.println(dumper.getThreadDump(threadMxBean));
-				p.println(dumper.getDeadlockData(connection, threadMxBean));
+				ThreadSample sample = dumper.writeThreadDump(out, threadMxBean);
+				out.write(LINE_SEPARATOR);
+				List<ThreadRecord[]> deadlocks = dumper.writeDeadlockData(out, sample);
+				out.write(LINE_SEPARATOR);
+
+				if (deadlockCheck) {
+					dumper.checkDeadlocks(connection, threadMxBean, deadlocks);
+				}
 
 			} finally {
-				p.close();
+				out.close();
 			}
 		}
 	}
 
-	private static Map<String, String> getHostsFromFile(String fileName) throws IOException {
-		Map<String, String> hosts = new HashMap<String, String>();
-		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+	/**
+	 * Writes the class histogram of the JVM as it is printed by the JVM, which
+	 * {@link ClassHistogram#read(File)} reads back.
+	 */
+	public void histogramToFile(String filePath, MBeanServerConnection connection) throws IOException,
+			DumpException {
+		System.out.println("Creating class histogram to file " + compression.getFileName(filePath));
+
+		String histogram = ClassHistogram.capture(connection);
+		Writer out = openWriter(filePath, connection);
+		try {
+			out.write(histogram);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void sampleToFile(String filePath, MBeanServerConnection connection) throws IOException, DumpException {
+		sampleToFile(filePath, connection, sampleCount, sampleIntervalMillis);
+	}
+
+	public void sampleToFile(String filePath, MBeanServerConnection connection, int count, long intervalMillis)
+			throws IOException, DumpException {
+		System.out.println("Creating " + count + " thread dumps " + intervalMillis + " ms apart to file "
+				+ compression.getFileName(filePath));
+
+		Writer out = openWriter(filePath, connection);
+		try {
+			ThreadSampler sampler = new ThreadSampler(connection);
+			sampler.setDeadlockCheck(deadlockCheck);
+			sampler.sample(out, count, intervalMillis, TimeUnit.MILLISECONDS);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void sampleToBinaryFile(String filePath, String source, MBeanServerConnection connection)
+			throws IOException, DumpException {
+		System.out.println("Creating " + sampleCount + " binary thread samples to file " + filePath);
+
+		OutputStream file = new FileOutputStream(filePath, true);
+		CaptureStats stats = CaptureStats.of(connection);
+		ThreadSampleWriter writer = new ThreadSampleWriter(stats == null ? file : stats.count(file), source);
+		try {
+			new ThreadSampler(connection).sample(writer, sampleCount, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+		} finally {
+			writer.close();
+		}
+	}
+
+	public void sampleUniqueStacksToFile(String filePath, MBeanServerConnection connection) throws IOException,
+			DumpException {
+		System.out.println("Creating " + sampleCount + " unique stack reports to file "
+				+ compression.getFileName(filePath));
 
+		final Writer out = openWriter(filePath, connection);
 		try {
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				String hostDetails[] = line.split(",");
-				if (hostDetails.length > 1) {
-					hosts.put(hostDetails[0], hostDetails[1]);
+			new ThreadSampler(connection).sample(new ThreadSampleHandler() {
+				public void handleSample(ThreadSample sample) throws IOException {
+					out.write(sample.getDumpDate());
+					out.write(sample.getDumpPrefix());
+					out.write(LINE_SEPARATOR);
+
+					StackAggregator aggregator = new StackAggregator();
+					if (sample.getThreads() != null) {
+						aggregator.addAll(sample.getThreads());
+					}
+					aggregator.writeReport(out);
+					out.write(ThreadDumpFormatter.END_OF_DUMP);
+					out.flush();
 				}
+			}, sampleCount, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void contentionToFile(String filePath, MBeanServerConnection connection) throws IOException,
+			DumpException {
+		System.out.println("Creating lock contention report from " + sampleCount + " samples to file "
+				+ compression.getFileName(filePath));
+
+		ContentionAnalyzer analyzer = new ContentionAnalyzer();
+		new ThreadSampler(connection).sample(analyzer, sampleCount, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+
+		Writer out = openWriter(filePath, connection);
+		try {
+			analyzer.writeReport(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void diffToFile(String filePath, MBeanServerConnection connection) throws IOException, DumpException {
+		int samples = Math.max(2, sampleCount);
+		System.out.println("Creating thread dump diff of " + samples + " samples to file "
+				+ compression.getFileName(filePath));
+
+		ThreadDumpDiff diff = new ThreadDumpDiff();
+		new ThreadSampler(connection).sample(diff, samples, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+
+		Writer out = openWriter(filePath, connection);
+		try {
+			diff.writeReport(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void profileToFile(String outputPrefix, String source, MBeanServerConnection connection)
+			throws IOException, DumpException {
+		System.out.println("Profiling for " + profileSeconds + " s at " + profileRate + " samples/s to file "
+				+ compression.getFileName(outputPrefix + ".collapsed"));
+
+		FrameTrie trie = new StackProfiler(connection).profile(profileSeconds, TimeUnit.SECONDS, profileRate);
+
+		Writer out = openWriter(outputPrefix + ".collapsed", connection);
+		try {
+			trie.writeCollapsed(out);
+		} finally {
+			out.close();
+		}
+
+		if (flameGraph) {
+			out = new BufferedWriter(new OutputStreamWriter(compression.open(outputPrefix + "-flame.svg",
+					CaptureStats.of(connection)), "UTF-8"),
+					DUMP_BUFFER_SIZE);
+			try {
+				trie.writeSvg(out, source + " RUNNABLE threads, " + profileSeconds + " s");
+			} finally {
+				out.close();
 			}
+		}
+	}
+
+	public void cpuAttributionToFile(String filePath, MBeanServerConnection connection) throws IOException,
+			DumpException {
+		int samples = Math.max(2, sampleCount);
+		System.out.println("Creating CPU report from " + samples + " samples to file "
+				+ compression.getFileName(filePath));
+
+		Writer out = openWriter(filePath, connection);
+		try {
+			new ThreadSampler(connection).sample(new CpuAttribution(connection, out, cpuTopCount), samples,
+					sampleIntervalMillis, TimeUnit.MILLISECONDS);
 		} finally {
-			reader.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Takes the thread dump of a host, or a series of them when sampling is
+	 * enabled.
+	 */
+	void captureThreads(String outputPrefix, String source, MBeanServerConnection connection) throws IOException,
+			DumpException {
+		if (profileSeconds > 0) {
+			profileToFile(outputPrefix, source, connection);
+		} else if (cpuTopCount > 0) {
+			cpuAttributionToFile(outputPrefix + "-cpu.txt", connection);
+		} else if (threadFormat == ThreadFormat.BINARY) {
+			sampleToBinaryFile(outputPrefix + ".tsamples", source, connection);
+		} else if (threadFormat == ThreadFormat.UNIQUE) {
+			sampleUniqueStacksToFile(outputPrefix + "-stacks.txt", connection);
+		} else if (threadFormat == ThreadFormat.CONTENTION) {
+			contentionToFile(outputPrefix + "-contention.txt", connection);
+		} else if (threadFormat == ThreadFormat.DIFF) {
+			diffToFile(outputPrefix + "-diff.txt", connection);
+		} else if (sampleCount > 1) {
+			sampleToFile(outputPrefix + ".tdump", connection);
+		} else {
+			dumpToFile(outputPrefix + ".tdump", connection);
 		}
+	}
 
-		return hosts;
+	/**
+	 * @return true if {@link #captureThreads} takes one plain dump, the only
+	 *         kind short enough to overlap with the report without the
+	 *         report's calls distorting what is sampled
+	 */
+	boolean isSingleDump() {
+		return profileSeconds == 0 && cpuTopCount == 0 && threadFormat == ThreadFormat.TEXT && sampleCount <= 1;
 	}
 
-	private String getCurrentDateAsString() {
+	String getCurrentDateAsString() {
 		DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
 		return dateFormat.format(new Date());
 	}
 
-	private void processHosts(Map<String, String> hosts, String outputPath) {
-		for (String hostKey : hosts.keySet()) {
+	/**
+	 * Captures the hosts of the list while it is read, so the first hosts are
+	 * dumped before the rest of a long list is parsed.
+	 */
+	private void processHosts(HostListReader hosts, String outputPath) {
+		if (watchRules != null) {
+			watchHosts(hosts, outputPath);
+			return;
+		}
+		if (metrics != null) {
+			pollHosts(hosts, outputPath);
+			return;
+		}
 
-			String hostDetails[] = hosts.get(hostKey).split(":");
-			HostData hostData = new HostData(hostDetails);
+		CaptureRequest request = CaptureRequest.ALL;
+		if (classHistogram) {
+			if (isSingleDump()) {
+				request = CaptureRequest.ALL_AND_HISTOGRAM;
+			} else {
+				LOGGER.log(Level.WARNING,
+						"The class histogram is only taken with a single thread dump, -histogram is ignored");
+			}
+		}
+		CaptureSource captures = new CaptureSource(hosts, outputPath, request);
+		long start = System.currentTimeMillis();
+		List<CaptureResult> results;
+		if (parallelism == 1 && hostTimeoutMillis == 0) {
+			results = new ArrayList<CaptureResult>();
+			HostCapture capture;
+			while ((capture = captures.next()) != null) {
+				results.add(capture.run());
+			}
+		} else {
+			results = processConcurrently(captures);
+		}
 
-			String outputPrefix = outputPath + hostKey + "-" + hostData.getHostName() + "-" + getCurrentDateAsString();
+		for (CaptureResult result : results) {
+			stats.add(result);
+		}
+		printSummary(results);
+		writeSummary(outputPath + "capture-summary-" + getCurrentDateAsString() + ".json", results,
+				System.currentTimeMillis() - start);
+	}
 
+	private void writeSummary(String filePath, List<CaptureResult> results, long elapsedMillis) {
+		System.out.println("Writing capture summary to file " + filePath);
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filePath), "UTF-8"));
 			try {
-				MBeanServerConnection connection = getConnection(hostData);
+				CaptureSummary.write(out, results, elapsedMillis);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not write the capture summary (" + filePath + "): " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Serves capture requests for the hosts of the list until the process is
+	 * stopped.
+	 */
+	private void runDaemon(HostListReader hosts, String outputPath, int port) throws IOException {
+		final DumperDaemon daemon = new DumperDaemon(this, hosts, outputPath);
+		registerStatsMBean();
+		daemon.start(port);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				daemon.stop();
+			}
+		}, "daemon-stopper"));
+		try {
+			Thread.sleep(Long.MAX_VALUE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			daemon.stop();
+		}
+	}
+
+	/**
+	 * Polls the metrics of the watch rules of every host until the process is
+	 * stopped, and captures a host when one of its rules holds.
+	 */
+	private void watchHosts(HostListReader hosts, final String outputPath) {
+		registerStatsMBean();
+		final MetricScheduler scheduler = new MetricScheduler(connectionManager, pollThreads, hostTimeoutMillis);
+		final ExecutorService capturePool = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory(
+				"watch-capture"));
+		final ExecutorService workers = Executors.newCachedThreadPool(new NamedThreadFactory("capture-worker"));
+		final OutputPrefixes outputPrefixes = new OutputPrefixes(this, outputPath);
+		final CaptureRequest request = new CaptureRequest(CaptureRequest.Kind.BURST_AND_REPORT, sampleCount,
+				sampleIntervalMillis);
+		// a capture that hangs must not keep the pool from capturing other hosts
+		final long captureTimeoutMillis = getTriggeredTimeoutMillis(request);
+		List<MetricSpec> specs = WatchRule.getMetrics(watchRules);
+
+		// written while the first hosts are already polled
+		final Map<String, HostListReader.Entry> watched = new ConcurrentHashMap<String, HostListReader.Entry>();
+		// only the hosts that have a filter of their own
+		final Map<String, MBeanFilter> watchedFilters = new ConcurrentHashMap<String, MBeanFilter>();
+		HostFilters hostFilters = new HostFilters();
+		final Set<HostData> capturing = Collections.synchronizedSet(new HashSet<HostData>());
+		MetricWatcher.Listener listener = new MetricWatcher.Listener() {
+			public void ruleFired(String watchKey, WatchRule rule, String metricName, double value) {
+				final HostListReader.Entry host = watched.get(watchKey);
+				final HostData hostData = host.getHostData();
+				final MBeanFilter hostFilter = watchedFilters.get(watchKey);
+				if (!capturing.add(hostData)) {
+					return;
+				}
+
+				System.out.println(host.getKey() + " (" + hostData + "): " + rule + " holds for " + metricName + " = "
+						+ String.format(Locale.ENGLISH, "%.3f", Double.valueOf(value)) + ", capturing a " + request);
+				capturePool.execute(new Runnable() {
+					public void run() {
+						try {
+							CaptureResult result = runWithDeadline(new HostCapture(JVMDumper.this, host.getKey(),
+									hostData, hostFilter, outputPrefixes.get(host.getKey(), hostData), request),
+									workers, captureTimeoutMillis);
+							stats.add(result);
+							System.out.println(result);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						} catch (ExecutionException e) {
+							LOGGER.log(Level.WARNING, "Could not capture " + host.getKey() + ": " + e.getCause());
+						} finally {
+							capturing.remove(hostData);
+						}
+					}
+				});
+			}
+		};
 
-				dumpToFile(outputPrefix + ".tdump", connection);
-				new ReportCreator().createHtmlReport(outputPrefix + "-mbean.html", connection);
+		Thread stopper = new Thread(new Runnable() {
+			public void run() {
+				scheduler.stop();
+				capturePool.shutdownNow();
+				workers.shutdownNow();
+			}
+		}, "watch-stopper");
+		Runtime.getRuntime().addShutdownHook(stopper);
 
+		HostListReader.Entry host;
+		while ((host = nextHost(hosts)) != null) {
+			HostData hostData = host.getHostData();
+			String watchKey = host.getKey() + "-" + hostData;
+			if (watched.containsKey(watchKey)) {
+				LOGGER.log(Level.WARNING, "Line " + host.getLineNumber() + " watches " + host.getKey()
+						+ " a second time, it is skipped");
+				continue;
+			}
+			try {
+				MBeanFilter hostFilter = hostFilters.get(host);
+				if (hostFilter != null) {
+					watchedFilters.put(watchKey, hostFilter);
+				}
 			} catch (IOException e) {
-				LOGGER.log(Level.WARNING, "IO error occured : " + e.getMessage());
-			} catch (DumpException e) {
-				LOGGER.log(Level.WARNING, "Error while taking a dump : " + e.getMessage());
+				LOGGER.log(Level.WARNING, "Could not read the filter file of " + host.getKey() + " ("
+						+ host.getFilterFile() + "), the host is skipped: " + e.getMessage());
+				continue;
+			}
+			watched.put(watchKey, host);
+			scheduler.schedule(watchKey, hostData, specs, pollIntervalMillis, TimeUnit.MILLISECONDS,
+					new MetricWatcher(watchKey, watchRules, cooldownMillis, listener));
+		}
+		System.out.println("Watching " + watched.size() + " hosts for " + watchRules.size() + " rules every "
+				+ pollIntervalMillis + " ms");
+
+		try {
+			Thread.sleep(Long.MAX_VALUE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Appends the metrics of every host to its own .tseries file, polling at
+	 * most {@link #pollThreads} hosts at the same time.
+	 */
+	private void pollHosts(HostListReader hosts, String outputPath) {
+		registerStatsMBean();
+		final MetricScheduler scheduler = new MetricScheduler(connectionManager, pollThreads, hostTimeoutMillis);
+		final List<TimeSeriesWriter> writers = new ArrayList<TimeSeriesWriter>();
+
+		Thread stopper = new Thread(new Runnable() {
+			public void run() {
+				stopPolling(scheduler, writers);
+			}
+		}, "poll-stopper");
+
+		try {
+			Set<String> filePaths = new HashSet<String>();
+			HostListReader.Entry host;
+			while ((host = nextHost(hosts)) != null) {
+				String hostKey = host.getKey();
+				HostData hostData = host.getHostData();
+				String filePath = outputPath + hostKey + "-" + hostData.getHostName() + ".tseries";
+				if (!filePaths.add(filePath)) {
+					LOGGER.log(Level.WARNING, "Line " + host.getLineNumber() + " polls " + hostKey
+							+ " a second time, it is skipped");
+					continue;
+				}
+
+				try {
+					TimeSeriesWriter writer = new TimeSeriesWriter(new File(filePath), true);
+					writers.add(writer);
+					System.out.println("Polling " + metrics.size() + " metrics every " + pollIntervalMillis
+							+ " ms to file " + filePath);
+					scheduler.schedule(hostKey, hostData, metrics, pollIntervalMillis, TimeUnit.MILLISECONDS, writer);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not open " + filePath + ", " + hostKey + " is skipped: "
+							+ e.getMessage());
+				}
+			}
+
+			if (pollDurationMillis == 0) {
+				// poll until the process is interrupted
+				Runtime.getRuntime().addShutdownHook(stopper);
+				Thread.sleep(Long.MAX_VALUE);
+			} else {
+				Thread.sleep(pollDurationMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			stopPolling(scheduler, writers);
+		}
+	}
+
+	private static void stopPolling(MetricScheduler scheduler, List<TimeSeriesWriter> writers) {
+		scheduler.stop();
+		synchronized (writers) {
+			for (TimeSeriesWriter writer : writers) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not close a time series file: " + e.getMessage());
+				}
+			}
+			writers.clear();
+		}
+	}
+
+	/**
+	 * Runs the captures on a pool of at most {@link #parallelism} threads. A
+	 * host that misses its deadline is aborted and reported, its worker thread
+	 * is left behind as a daemon so it never holds up the remaining hosts. The
+	 * host list is only read as far as a few hosts ahead of the pool.
+	 */
+	private List<CaptureResult> processConcurrently(CaptureSource captures) {
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("capture"));
+		final ExecutorService workers = Executors.newCachedThreadPool(new NamedThreadFactory("capture-worker"));
+		final Semaphore queued = new Semaphore(parallelism * QUEUED_HOSTS_PER_THREAD);
+
+		try {
+			List<HostCapture> started = new ArrayList<HostCapture>();
+			List<Future<CaptureResult>> futures = new ArrayList<Future<CaptureResult>>();
+			try {
+				while (true) {
+					queued.acquire();
+					final HostCapture capture = captures.next();
+					if (capture == null) {
+						break;
+					}
+
+					started.add(capture);
+					futures.add(pool.submit(new Callable<CaptureResult>() {
+						public CaptureResult call() throws Exception {
+							try {
+								return runWithDeadline(capture, workers);
+							} finally {
+								queued.release();
+							}
+						}
+					}));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			List<CaptureResult> results = new ArrayList<CaptureResult>();
+			for (int i = 0; i < futures.size(); i++) {
+				HostCapture capture = started.get(i);
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					results.add(new CaptureResult(capture.getHostKey(), capture.getHostData(),
+							CaptureResult.Status.FAILED, String.valueOf(e.getCause()), 0));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					results.add(new CaptureResult(capture.getHostKey(), capture.getHostData(),
+							CaptureResult.Status.FAILED, "interrupted", 0));
+				}
+			}
+			return results;
+
+		} finally {
+			pool.shutdownNow();
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the deadline of a capture triggered by a watch rule or a daemon
+	 *         request: the time it samples for plus the host timeout, or plus
+	 *         {@link #DEFAULT_TRIGGERED_CAPTURE_TIMEOUT_MILLIS} without one. A
+	 *         long burst is not cut short by a short timeout, and a hung host
+	 *         never holds up the captures queued behind it.
+	 */
+	long getTriggeredTimeoutMillis(CaptureRequest request) {
+		long samplingMillis = 0;
+		if (request.isBurst()) {
+			samplingMillis = request.getSamples() * request.getIntervalMillis();
+		} else if (request.includesThreads()) {
+			samplingMillis = profileSeconds > 0 ? profileSeconds * 1000 : sampleCount * sampleIntervalMillis;
+		}
+		return samplingMillis
+				+ (hostTimeoutMillis > 0 ? hostTimeoutMillis : DEFAULT_TRIGGERED_CAPTURE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Runs a capture on one of the workers and aborts it when it misses the
+	 * host timeout.
+	 */
+	CaptureResult runWithDeadline(HostCapture capture, ExecutorService workers) throws InterruptedException,
+			ExecutionException {
+		return runWithDeadline(capture, workers, hostTimeoutMillis);
+	}
+
+	/**
+	 * @param timeoutMillis
+	 *            0 runs the capture on this thread without a deadline
+	 */
+	CaptureResult runWithDeadline(final HostCapture capture, ExecutorService workers, long timeoutMillis)
+			throws InterruptedException, ExecutionException {
+
+		if (timeoutMillis == 0) {
+			return capture.run();
+		}
+
+		Future<CaptureResult> future = workers.submit(new Callable<CaptureResult>() {
+			public CaptureResult call() throws Exception {
+				return capture.run();
 			}
+		});
+
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			LOGGER.log(Level.WARNING, "Capture of " + capture.getHostKey() + " timed out after " + timeoutMillis
+					+ " ms");
+			capture.abort();
+			future.cancel(true);
+			return capture.timedOut(timeoutMillis);
+		}
+	}
+
+	private void printSummary(List<CaptureResult> results) {
+		int succeeded = 0;
+		List<CaptureResult> problems = new ArrayList<CaptureResult>();
+
+		for (CaptureResult result : results) {
+			if (result.getStatus() == CaptureResult.Status.SUCCEEDED) {
+				succeeded++;
+			} else {
+				problems.add(result);
+			}
+		}
+
+		System.out.println("Captured " + succeeded + " of " + results.size() + " hosts.");
+		for (CaptureResult result : problems) {
+			System.out.println("  " + result);
+		}
+	}
+
+	/**
+	 * @return the next host of the list, or null at its end or if it cannot be
+	 *         read any further
+	 */
+	private static HostListReader.Entry nextHost(HostListReader hosts) {
+		try {
+			return hosts.next();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read the hosts file, the remaining hosts are skipped: "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Turns the hosts of the list into captures, one at a time. Hosts listed
+	 * twice in the same second get a number after their output prefix.
+	 */
+	private class CaptureSource {
+
+		private final HostListReader hosts;
+		private final HostFilters hostFilters = new HostFilters();
+		private final OutputPrefixes outputPrefixes;
+		private final CaptureRequest request;
+
+		CaptureSource(HostListReader hosts, String outputPath, CaptureRequest request) {
+			this.hosts = hosts;
+			this.outputPrefixes = new OutputPrefixes(JVMDumper.this, outputPath);
+			this.request = request;
+		}
+
+		/**
+		 * @return the capture of the next host, null after the last one
+		 */
+		HostCapture next() {
+			HostListReader.Entry host;
+			while ((host = nextHost(hosts)) != null) {
+				String hostKey = host.getKey();
+				HostData hostData = host.getHostData();
+
+				MBeanFilter hostFilter;
+				try {
+					hostFilter = hostFilters.get(host);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not read the filter file of " + hostKey + " ("
+							+ host.getFilterFile() + "), the host is skipped: " + e.getMessage());
+					continue;
+				}
+
+				return new HostCapture(JVMDumper.this, hostKey, hostData, hostFilter, outputPrefixes.get(hostKey,
+						hostData), request);
+			}
+			return null;
 		}
 	}
 
@@ -129,23 +956,152 @@ public class JVMDumper {
 		}
 	}
 
+	private static void exitWithUsage() {
+		System.out.println(USAGE);
+		System.exit(1);
+	}
+
 	public static void main(String[] args) {
 
-		if (args.length == 0 || args.length > 2) {
-			System.out.println("Usage: java -jar JVMDumper <host-file> <output-dir-path>");
-			System.exit(1);
+		JVMDumper dumper = new JVMDumper();
+		int samples = 1;
+		long interval = 1000;
+		long profileSeconds = 0;
+		int profileRate = 20;
+		boolean flameGraph = false;
+		File infoCacheFile = null;
+		List<MetricSpec> metrics = null;
+		List<WatchRule> watchRules = null;
+		long cooldown = DEFAULT_COOLDOWN_SECONDS;
+		boolean samplesGiven = false;
+		long pollInterval = 1000;
+		long pollDuration = 60;
+		int daemonPort = -1;
+
+		int argIndex = 0;
+		try {
+			while (argIndex < args.length - 1 && args[argIndex].startsWith("-")) {
+				String option = args[argIndex++];
+				String value = args[argIndex++];
+
+				if ("-parallel".equals(option)) {
+					dumper.setParallelism(Integer.parseInt(value));
+				} else if ("-timeout".equals(option)) {
+					dumper.setHostTimeout(Long.parseLong(value), TimeUnit.SECONDS);
+				} else if ("-maxvalue".equals(option)) {
+					dumper.setMaxValueLength(Integer.parseInt(value));
+				} else if ("-samples".equals(option)) {
+					samples = Integer.parseInt(value);
+					samplesGiven = true;
+				} else if ("-interval".equals(option)) {
+					interval = Long.parseLong(value);
+				} else if ("-profile".equals(option)) {
+					profileSeconds = Long.parseLong(value);
+				} else if ("-profilerate".equals(option)) {
+					profileRate = Integer.parseInt(value);
+				} else if ("-flamegraph".equals(option)) {
+					flameGraph = Boolean.parseBoolean(value);
+				} else if ("-cpu".equals(option)) {
+					dumper.setCpuTopCount(Integer.parseInt(value));
+				} else if ("-filter".equals(option)) {
+					try {
+						dumper.setFilter(MBeanFilter.load(new File(value)));
+					} catch (IOException e) {
+						System.out.println("Could not read the filter file: " + e.getMessage());
+						exitWithUsage();
+					}
+				} else if ("-infocache".equals(option)) {
+					infoCacheFile = new File(value);
+					MBeanInfoCache.getDefault().load(infoCacheFile);
+				} else if ("-infocachesize".equals(option)) {
+					MBeanInfoCache.getDefault().setMaxEntries(Integer.parseInt(value));
+				} else if ("-histogram".equals(option)) {
+					dumper.setClassHistogram(Boolean.parseBoolean(value));
+				} else if ("-mbeanreads".equals(option)) {
+					dumper.setConcurrentReads(Integer.parseInt(value));
+				} else if ("-compress".equals(option)) {
+					dumper.setCompression(Compression.valueOf(value.toUpperCase(Locale.ENGLISH)));
+				} else if ("-deadlockcheck".equals(option)) {
+					dumper.setDeadlockCheck(Boolean.parseBoolean(value));
+				} else if ("-poll".equals(option)) {
+					try {
+						metrics = MetricSpec.load(new File(value));
+					} catch (IOException e) {
+						System.out.println("Could not read the metrics file: " + e.getMessage());
+						exitWithUsage();
+					}
+				} else if ("-pollthreads".equals(option)) {
+					dumper.setPollThreads(Integer.parseInt(value));
+				} else if ("-pollinterval".equals(option)) {
+					pollInterval = Long.parseLong(value);
+				} else if ("-pollduration".equals(option)) {
+					pollDuration = Long.parseLong(value);
+				} else if ("-watch".equals(option)) {
+					try {
+						watchRules = WatchRule.load(new File(value));
+					} catch (IOException e) {
+						System.out.println("Could not read the rules file: " + e.getMessage());
+						exitWithUsage();
+					}
+				} else if ("-cooldown".equals(option)) {
+					cooldown = Long.parseLong(value);
+				} else if ("-daemon".equals(option)) {
+					daemonPort = Integer.parseInt(value);
+				} else if ("-daemonthreads".equals(option)) {
+					dumper.setDaemonThreads(Integer.parseInt(value));
+				} else if ("-format".equals(option)) {
+					dumper.setThreadFormat(ThreadFormat.valueOf(value.toUpperCase(Locale.ENGLISH)));
+				} else {
+					exitWithUsage();
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println("Invalid option value: " + e.getMessage());
+			exitWithUsage();
+		}
+		if (watchRules != null) {
+			dumper.setWatching(watchRules, cooldown, TimeUnit.SECONDS);
+			if (!samplesGiven) {
+				samples = DEFAULT_WATCH_SAMPLES;
+			}
+		}
+		dumper.setSampling(samples, interval, TimeUnit.MILLISECONDS);
+		dumper.setProfiling(profileSeconds, profileRate, flameGraph);
+		if (metrics != null || watchRules != null) {
+			// the watch rules are polled at the poll interval too
+			dumper.setPolling(metrics, pollInterval, pollDuration * 1000, TimeUnit.MILLISECONDS);
+		}
+
+		String[] fileArgs = new String[args.length - argIndex];
+		System.arraycopy(args, argIndex, fileArgs, 0, fileArgs.length);
+
+		if (fileArgs.length == 0 || fileArgs.length > 2) {
+			exitWithUsage();
 		}
 
-		String hostsFile = args[0];
+		String hostsFile = fileArgs[0];
 
 		try {
-			Map<String, String> hosts = getHostsFromFile(hostsFile);
-			new JVMDumper().processHosts(hosts, getOutputDirPath(args));
+			HostListReader hosts = new HostListReader(hostsFile);
+			try {
+				if (daemonPort >= 0) {
+					dumper.runDaemon(hosts, getOutputDirPath(fileArgs), daemonPort);
+				} else {
+					dumper.processHosts(hosts, getOutputDirPath(fileArgs));
+				}
+			} finally {
+				hosts.close();
+			}
 
 			System.out.println("Done.");
 
 		} catch (IOException e) {
 			LOGGER.log(Level.WARNING, "Could not read the hosts file (" + hostsFile + "): " + e.getMessage(), e);
+		} finally {
+			dumper.close();
+			if (infoCacheFile != null) {
+				saveInfoCache(infoCacheFile);
+			}
 		}
 
 	}
@@ -0,0 +1,172 @@
+package com.pololpoly.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Connects to a JVM on this machine that has no JMX port. The Attach API
+ * starts the local management agent in the JVM, if it is not running yet,
+ * and the dumper connects to the address the agent publishes, which only
+ * accepts connections from this machine. The Attach API is used by
+ * reflection, as it comes from tools.jar before Java 9 and from the
+ * jdk.attach module after.
+ */
+final class LocalAttach {
+
+	private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+	private static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+	private static Class<?> virtualMachineClass;
+
+	private LocalAttach() {
+	}
+
+	/**
+	 * @return a connector to the JVM with the process ID or main class of the
+	 *         host, or to the platform MBean server if that is this JVM
+	 */
+	static JMXConnector connect(HostData hostData) throws IOException {
+		Class<?> vmClass = getVirtualMachineClass();
+		String pid = hostData.getType() == HostData.Type.PID ? hostData.getTarget() : findPid(vmClass, hostData
+				.getTarget());
+
+		if (pid.equals(getOwnPid())) {
+			// a JVM may not attach to itself, and does not need to
+			return new LocalConnector();
+		}
+
+		String address = getConnectorAddress(vmClass, pid);
+		System.out.println("Connecting to " + hostData + " through its local connector");
+		return JMXConnectorFactory.connect(new JMXServiceURL(address));
+	}
+
+	private static String getConnectorAddress(Class<?> vmClass, String pid) throws IOException {
+		Object vm = invoke(vmClass, null, "attach", new Class<?>[] { String.class }, pid);
+		try {
+			String address = ((Properties) invoke(vmClass, vm, "getAgentProperties", new Class<?>[0]))
+					.getProperty(LOCAL_CONNECTOR_ADDRESS);
+			if (address != null) {
+				return address;
+			}
+
+			try {
+				vmClass.getMethod("startLocalManagementAgent");
+				return (String) invoke(vmClass, vm, "startLocalManagementAgent", new Class<?>[0]);
+			} catch (NoSuchMethodException e) {
+				// before Java 8 the agent is loaded from the JVM's own installation
+				Properties properties = (Properties) invoke(vmClass, vm, "getSystemProperties", new Class<?>[0]);
+				File agent = new File(properties.getProperty("java.home"), "lib" + File.separator
+						+ "management-agent.jar");
+				invoke(vmClass, vm, "loadAgent", new Class<?>[] { String.class }, agent.getPath());
+
+				address = ((Properties) invoke(vmClass, vm, "getAgentProperties", new Class<?>[0]))
+						.getProperty(LOCAL_CONNECTOR_ADDRESS);
+				if (address == null) {
+					throw new IOException("The management agent of JVM " + pid + " did not start");
+				}
+				return address;
+			}
+		} finally {
+			invoke(vmClass, vm, "detach", new Class<?>[0]);
+		}
+	}
+
+	/**
+	 * Finds the single JVM whose main class or jar is the given name. The
+	 * name matches the full class name, the class name without its package
+	 * or the jar file name.
+	 */
+	private static String findPid(Class<?> vmClass, String mainClass) throws IOException {
+		List<?> descriptors = (List<?>) invoke(vmClass, null, "list", new Class<?>[0]);
+		List<String> pids = new ArrayList<String>();
+
+		for (Object descriptor : descriptors) {
+			String displayName = (String) invoke(descriptor.getClass(), descriptor, "displayName", new Class<?>[0]);
+			String main = displayName.trim().split("\\s+")[0];
+
+			if (main.equals(mainClass) || main.endsWith("." + mainClass) || main.endsWith("/" + mainClass)
+					|| main.endsWith(File.separator + mainClass)) {
+				pids.add((String) invoke(descriptor.getClass(), descriptor, "id", new Class<?>[0]));
+			}
+		}
+
+		if (pids.isEmpty()) {
+			throw new IOException("No local JVM runs " + mainClass);
+		}
+		if (pids.size() > 1) {
+			throw new IOException(pids.size() + " local JVMs run " + mainClass + " " + pids
+					+ ", use pid:<process-id> instead");
+		}
+		return pids.get(0);
+	}
+
+	private static String getOwnPid() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int separator = name.indexOf('@');
+		return separator < 0 ? name : name.substring(0, separator);
+	}
+
+	private static synchronized Class<?> getVirtualMachineClass() throws IOException {
+		if (virtualMachineClass == null) {
+			try {
+				virtualMachineClass = Class.forName(VIRTUAL_MACHINE);
+			} catch (ClassNotFoundException e) {
+				virtualMachineClass = loadFromToolsJar();
+			}
+		}
+		return virtualMachineClass;
+	}
+
+	/**
+	 * Before Java 9 the Attach API is only in the tools.jar of a JDK, next to
+	 * the JRE the dumper runs on.
+	 */
+	private static Class<?> loadFromToolsJar() throws IOException {
+		File toolsJar = new File(System.getProperty("java.home"), ".." + File.separator + "lib" + File.separator
+				+ "tools.jar");
+		if (!toolsJar.isFile()) {
+			throw new IOException("The Attach API is not available, run the dumper with a JDK to reach local JVMs");
+		}
+
+		try {
+			ClassLoader loader = new URLClassLoader(new URL[] { toolsJar.toURI().toURL() },
+					LocalAttach.class.getClassLoader());
+			return Class.forName(VIRTUAL_MACHINE, true, loader);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("The Attach API is not in " + toolsJar);
+		}
+	}
+
+	private static Object invoke(Class<?> type, Object target, String name, Class<?>[] parameterTypes,
+			Object... arguments) throws IOException {
+		try {
+			Method method = type.getMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return method.invoke(target, arguments);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			IOException exception = new IOException(name + " failed: " + cause);
+			exception.initCause(cause);
+			throw exception;
+		} catch (NoSuchMethodException e) {
+			throw new IOException("The Attach API has no " + name + " method");
+		} catch (IllegalAccessException e) {
+			throw new IOException("Could not call " + name + " of the Attach API: " + e.getMessage());
+		}
+	}
+}
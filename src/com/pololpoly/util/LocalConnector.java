@@ -0,0 +1,52 @@
+package com.pololpoly.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+/**
+ * A connector to the platform MBean server of this JVM. The calls go
+ * straight to the MBeans, nothing is serialized, and the connection can
+ * never fail.
+ */
+class LocalConnector implements JMXConnector {
+
+	public void connect() {
+	}
+
+	public void connect(Map<String, ?> env) {
+	}
+
+	public MBeanServerConnection getMBeanServerConnection() {
+		return ManagementFactory.getPlatformMBeanServer();
+	}
+
+	public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) {
+		return getMBeanServerConnection();
+	}
+
+	public void close() {
+	}
+
+	public void addConnectionNotificationListener(NotificationListener listener, NotificationFilter filter,
+			Object handback) {
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener listener)
+			throws ListenerNotFoundException {
+	}
+
+	public void removeConnectionNotificationListener(NotificationListener l, NotificationFilter f, Object handback)
+			throws ListenerNotFoundException {
+	}
+
+	public String getConnectionId() {
+		return "self";
+	}
+}
@@ -0,0 +1,199 @@
+package com.pololpoly.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+
+/**
+ * Selects the MBeans and attributes that go into the MBean report. MBeans
+ * are selected with ObjectName patterns, which the remote MBean server
+ * evaluates itself, attributes with name patterns where * and ? are
+ * wildcards. A filter file has one rule per line:
+ * 
+ * <pre>
+ * # only the platform MBeans, without the expensive cache statistics
+ * include=java.lang:*
+ * exclude=java.lang:type=MemoryPool,*
+ * exclude-attribute=*Statistics*
+ * include-attribute=*
+ * </pre>
+ * 
+ * Without include rules all MBeans or attributes are included; exclude rules
+ * always win.
+ */
+public class MBeanFilter {
+
+	public static final MBeanFilter ALL = new MBeanFilter();
+
+	private final List<ObjectName> includes = new ArrayList<ObjectName>();
+	private final List<ObjectName> excludes = new ArrayList<ObjectName>();
+	private final List<Pattern> attributeIncludes = new ArrayList<Pattern>();
+	private final List<Pattern> attributeExcludes = new ArrayList<Pattern>();
+
+	public static MBeanFilter load(File file) throws IOException {
+		MBeanFilter filter = new MBeanFilter();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				int separator = line.indexOf('=');
+				if (separator < 0) {
+					throw new IOException(file + ":" + lineNumber + ": expected <rule>=<pattern>");
+				}
+				filter.addRule(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+
+		return filter;
+	}
+
+	/**
+	 * @param rule
+	 *            include, exclude, include-attribute or exclude-attribute
+	 */
+	public void addRule(String rule, String pattern) {
+		if ("include".equals(rule)) {
+			includes.add(toObjectName(pattern));
+		} else if ("exclude".equals(rule)) {
+			excludes.add(toObjectName(pattern));
+		} else if ("include-attribute".equals(rule)) {
+			attributeIncludes.add(toPattern(pattern));
+		} else if ("exclude-attribute".equals(rule)) {
+			attributeExcludes.add(toPattern(pattern));
+		} else {
+			throw new IllegalArgumentException("Unknown filter rule: " + rule);
+		}
+	}
+
+	/**
+	 * @return a filter with the rules of both filters
+	 */
+	public MBeanFilter and(MBeanFilter other) {
+		MBeanFilter combined = new MBeanFilter();
+		combined.includes.addAll(includes);
+		combined.includes.addAll(other.includes);
+		combined.excludes.addAll(excludes);
+		combined.excludes.addAll(other.excludes);
+		combined.attributeIncludes.addAll(attributeIncludes);
+		combined.attributeIncludes.addAll(other.attributeIncludes);
+		combined.attributeExcludes.addAll(attributeExcludes);
+		combined.attributeExcludes.addAll(other.attributeExcludes);
+		return combined;
+	}
+
+	/**
+	 * Queries the names of the selected MBeans. Both include and exclude
+	 * patterns are sent to the server, so excluded MBeans never cross the wire.
+	 */
+	public Set<ObjectName> queryNames(MBeanServerConnection connection) throws IOException {
+		QueryExp query = getExcludeQuery();
+
+		if (includes.isEmpty()) {
+			return connection.queryNames(null, query);
+		}
+
+		Set<ObjectName> names = new LinkedHashSet<ObjectName>();
+		for (ObjectName include : includes) {
+			names.addAll(connection.queryNames(include, query));
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * Like {@link #queryNames(MBeanServerConnection)}, with the class name of
+	 * each MBean.
+	 */
+	public Set<ObjectInstance> queryMBeans(MBeanServerConnection connection) throws IOException {
+		QueryExp query = getExcludeQuery();
+
+		if (includes.isEmpty()) {
+			return connection.queryMBeans(null, query);
+		}
+
+		Set<ObjectInstance> instances = new LinkedHashSet<ObjectInstance>();
+		for (ObjectName include : includes) {
+			instances.addAll(connection.queryMBeans(include, query));
+		}
+		return Collections.unmodifiableSet(instances);
+	}
+
+	private QueryExp getExcludeQuery() {
+		QueryExp query = null;
+		for (ObjectName exclude : excludes) {
+			QueryExp notExcluded = Query.not(exclude);
+			query = query == null ? notExcluded : Query.and(query, notExcluded);
+		}
+		return query;
+	}
+
+	public boolean isAttributeIncluded(String attributeName) {
+		for (Pattern exclude : attributeExcludes) {
+			if (exclude.matcher(attributeName).matches()) {
+				return false;
+			}
+		}
+
+		if (attributeIncludes.isEmpty()) {
+			return true;
+		}
+		for (Pattern include : attributeIncludes) {
+			if (include.matcher(attributeName).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ObjectName toObjectName(String pattern) {
+		try {
+			return new ObjectName(pattern);
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid ObjectName pattern " + pattern + ": " + e.getMessage());
+		}
+	}
+
+	private static Pattern toPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > start) {
+					regex.append(Pattern.quote(glob.substring(start, i)));
+				}
+				regex.append(c == '*' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (start < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(start)));
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
@@ -0,0 +1,266 @@
+package com.pololpoly.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Remembers MBean metadata, so that a fleet of JVMs running the same
+ * application only pays the getMBeanInfo round trip once per kind of MBean.
+ * Entries are keyed by the MBean class, the ObjectName domain, the names of
+ * its key properties and the value of its type key, and by the version of the
+ * JVM, see {@link #getVersion(MBeanServerConnection)}, so that hosts running
+ * another version of the application never share metadata. The least
+ * recently used entries are dropped beyond the maximum size, and the cache
+ * can be saved to and loaded from a file between runs.
+ * <p>
+ * Only the metadata of standard MBeans and MXBeans is cached, which is
+ * defined by their interface. Dynamic MBeans may describe every instance
+ * differently.
+ */
+public class MBeanInfoCache {
+
+	private static final Logger LOGGER = Logger.getLogger(MBeanInfoCache.class.getName());
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	private static final int FILE_VERSION = 2;
+	private static final String[] TYPE_KEYS = { "type", "j2eeType" };
+	private static final String INTERFACE_CLASS_NAME = "interfaceClassName";
+	private static final String[] VERSION_ATTRIBUTES = { "VmVendor", "VmName", "VmVersion", "ClassPath" };
+
+	private static final MBeanInfoCache DEFAULT = new MBeanInfoCache(DEFAULT_MAX_ENTRIES);
+
+	private final Map<String, MBeanInfo> entries;
+	private volatile int maxEntries;
+
+	private long hits;
+	private long misses;
+
+	public MBeanInfoCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, MBeanInfo>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MBeanInfo> eldest) {
+				return size() > MBeanInfoCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache shared by all reports and thread dumpers of this
+	 *         process
+	 */
+	public static MBeanInfoCache getDefault() {
+		return DEFAULT;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the metadata of an MBean, from the cache if an MBean of the same
+	 * kind was seen before in a JVM of the same version.
+	 *
+	 * @param version
+	 *            the version of the JVM, null if it is unknown and nothing is
+	 *            cached
+	 */
+	public MBeanInfo getMBeanInfo(MBeanServerConnection connection, ObjectInstance instance, String version)
+			throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+
+		String className = instance.getClassName();
+		if (className == null || version == null) {
+			return connection.getMBeanInfo(instance.getObjectName());
+		}
+
+		String key = getKey(instance.getObjectName(), className, version);
+		MBeanInfo info = get(key);
+		if (info == null) {
+			info = connection.getMBeanInfo(instance.getObjectName());
+			if (isShared(info)) {
+				put(key, info);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * @return true for the metadata of a standard MBean or MXBean, which is
+	 *         the same for all MBeans of its class
+	 */
+	private static boolean isShared(MBeanInfo info) {
+		return info.getDescriptor().getFieldValue(INTERFACE_CLASS_NAME) != null;
+	}
+
+	/**
+	 * Identifies the version of the JVM and the application behind a
+	 * connection by the VM and a hash of the class path, which usually names
+	 * versioned jars.
+	 *
+	 * @return the version, null if the runtime MBean could not be read
+	 */
+	public static String getVersion(MBeanServerConnection connection) throws IOException {
+		AttributeList attributes;
+		try {
+			attributes = connection.getAttributes(new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME),
+					VERSION_ATTRIBUTES);
+		} catch (JMException e) {
+			LOGGER.log(Level.FINE, "Could not read the version of the JVM: " + e);
+			return null;
+		}
+		if (attributes.size() != VERSION_ATTRIBUTES.length) {
+			return null;
+		}
+
+		StringBuilder version = new StringBuilder();
+		for (Attribute attribute : attributes.asList()) {
+			String value = String.valueOf(attribute.getValue());
+			if ("ClassPath".equals(attribute.getName())) {
+				version.append(Integer.toHexString(value.hashCode())).append('-').append(value.length());
+			} else {
+				version.append(value).append(' ');
+			}
+		}
+		return version.toString();
+	}
+
+	public synchronized MBeanInfo get(String key) {
+		MBeanInfo info = entries.get(key);
+		if (info == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return info;
+	}
+
+	public synchronized void put(String key, MBeanInfo info) {
+		entries.put(key, info);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Adds the entries saved in a file, a missing or unreadable file leaves
+	 * the cache as it is.
+	 */
+	public void load(File file) {
+		if (!file.exists()) {
+			return;
+		}
+
+		try {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_VERSION) {
+					LOGGER.log(Level.WARNING, "Ignoring MBeanInfo cache " + file + " written by another version");
+					return;
+				}
+
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String key = (String) in.readObject();
+					put(key, (MBeanInfo) in.readObject());
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read the MBeanInfo cache " + file + ": " + e.getMessage());
+		} catch (ClassNotFoundException e) {
+			LOGGER.log(Level.WARNING, "Could not read the MBeanInfo cache " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes all entries to a file, least recently used first so that loading
+	 * them keeps their order.
+	 */
+	public void save(File file) throws IOException {
+		List<Map.Entry<String, MBeanInfo>> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<Map.Entry<String, MBeanInfo>>(entries.entrySet());
+		}
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(FILE_VERSION);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, MBeanInfo> entry : snapshot) {
+				out.writeObject(entry.getKey());
+				out.writeObject(entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!tempFile.renameTo(file)) {
+			file.delete();
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return e.g. java.lang:name,type=MemoryPool|sun.management.MemoryPoolImpl|{version}
+	 */
+	static String getKey(ObjectName name, String className, String version) {
+		List<String> keys = new ArrayList<String>(name.getKeyPropertyList().keySet());
+		Collections.sort(keys);
+
+		StringBuilder key = new StringBuilder(name.getDomain()).append(':');
+		for (int i = 0; i < keys.size(); i++) {
+			if (i > 0) {
+				key.append(',');
+			}
+			key.append(keys.get(i));
+		}
+		for (String typeKey : TYPE_KEYS) {
+			String type = name.getKeyProperty(typeKey);
+			if (type != null) {
+				key.append('=').append(type);
+			}
+		}
+		return key.append('|').append(className).append('|').append(version).toString();
+	}
+}
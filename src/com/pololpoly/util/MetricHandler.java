@@ -0,0 +1,18 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the values of a host every time its metrics are polled by a
+ * {@link MetricScheduler}.
+ */
+public interface MetricHandler {
+
+	/**
+	 * @param values
+	 *            one per name, null where a value could not be read
+	 */
+	void handleMetrics(long timestamp, List<String> names, Number[] values) throws IOException;
+
+}
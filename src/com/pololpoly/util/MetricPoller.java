@@ -0,0 +1,133 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeMBeanException;
+
+/**
+ * Reads a fixed set of numeric MBean values from one JVM. The metrics are
+ * grouped by MBean, so each poll costs one getAttributes call per MBean no
+ * matter how many attributes and fields are read from it. Patterns in the
+ * metric specs are resolved once when the poller is created.
+ */
+public class MetricPoller {
+
+	private static final Logger LOGGER = Logger.getLogger(MetricPoller.class.getName());
+
+	private static class MBeanRead {
+
+		private final ObjectName name;
+		private final String[] attributes;
+		private final List<Integer> metricIndexes = new ArrayList<Integer>();
+
+		MBeanRead(ObjectName name, Set<String> attributes) {
+			this.name = name;
+			this.attributes = attributes.toArray(new String[attributes.size()]);
+		}
+	}
+
+	private final MBeanServerConnection connection;
+	private final List<MetricSpec> metrics = new ArrayList<MetricSpec>();
+	private final List<String> metricNames = new ArrayList<String>();
+	private final List<String> unmodifiableNames = Collections.unmodifiableList(metricNames);
+	private final List<MBeanRead> reads = new ArrayList<MBeanRead>();
+
+	public MetricPoller(MBeanServerConnection connection, List<MetricSpec> specs) throws IOException {
+		this.connection = connection;
+
+		for (MetricSpec spec : specs) {
+			if (spec.isPattern()) {
+				for (ObjectName name : new TreeSet<ObjectName>(connection.queryNames(spec.getObjectName(),
+						null))) {
+					metrics.add(spec.forMBean(name));
+				}
+			} else {
+				metrics.add(spec);
+			}
+		}
+
+		Map<ObjectName, Set<String>> attributesByMBean = new LinkedHashMap<ObjectName, Set<String>>();
+		for (MetricSpec metric : metrics) {
+			metricNames.add(metric.toString());
+			Set<String> attributes = attributesByMBean.get(metric.getObjectName());
+			if (attributes == null) {
+				attributes = new LinkedHashSet<String>();
+				attributesByMBean.put(metric.getObjectName(), attributes);
+			}
+			attributes.add(metric.getAttribute());
+		}
+
+		Map<ObjectName, MBeanRead> readsByMBean = new LinkedHashMap<ObjectName, MBeanRead>();
+		for (Map.Entry<ObjectName, Set<String>> entry : attributesByMBean.entrySet()) {
+			MBeanRead read = new MBeanRead(entry.getKey(), entry.getValue());
+			readsByMBean.put(entry.getKey(), read);
+			reads.add(read);
+		}
+		for (int i = 0; i < metrics.size(); i++) {
+			readsByMBean.get(metrics.get(i).getObjectName()).metricIndexes.add(Integer.valueOf(i));
+		}
+	}
+
+	/**
+	 * @return the names of the polled metrics, in the order of
+	 *         {@link #poll()}'s values; the same list every time, so a
+	 *         handler can tell a new poller by it
+	 */
+	public List<String> getMetricNames() {
+		return unmodifiableNames;
+	}
+
+	/**
+	 * @return one value per metric, null where it could not be read
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	public Number[] poll() throws IOException {
+		Number[] values = new Number[metrics.size()];
+
+		for (MBeanRead read : reads) {
+			AttributeList attributeList;
+			try {
+				attributeList = connection.getAttributes(read.name, read.attributes);
+			} catch (InstanceNotFoundException e) {
+				LOGGER.log(Level.FINE, "MBean " + read.name + " is gone: " + e.getMessage());
+				continue;
+			} catch (ReflectionException e) {
+				LOGGER.log(Level.FINE, "Could not read " + read.name + ": " + e.getMessage());
+				continue;
+			} catch (RuntimeMBeanException e) {
+				LOGGER.log(Level.FINE, "Could not read " + read.name + ": " + e.getMessage());
+				continue;
+			}
+
+			Map<String, Object> attributeValues = new LinkedHashMap<String, Object>();
+			for (Object o : attributeList) {
+				Attribute attribute = (Attribute) o;
+				attributeValues.put(attribute.getName(), attribute.getValue());
+			}
+
+			for (Integer index : read.metricIndexes) {
+				MetricSpec metric = metrics.get(index.intValue());
+				values[index.intValue()] = metric.extract(attributeValues.get(metric.getAttribute()));
+			}
+		}
+
+		return values;
+	}
+}
@@ -0,0 +1,268 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the metrics of many hosts on one small shared pool of threads. Each
+ * host is a periodic task that holds its own {@link MetricPoller}, so a poll
+ * is a handful of getAttributes calls over an open connection. A slow host
+ * only delays its own next poll and the polls it missed are skipped rather
+ * than run back to back. A host whose connection fails is reconnected with
+ * a growing delay of up to {@link #MAX_RETRY_DELAY_MILLIS}.
+ * <p>
+ * A poll that takes longer than the timeout is given up: its connection is
+ * aborted and the pool gets another thread in place of the one that is
+ * stuck, so a host that stopped responding never holds up the others. The
+ * host is polled again once the stuck call has returned.
+ */
+public class MetricScheduler {
+
+	private static final Logger LOGGER = Logger.getLogger(MetricScheduler.class.getName());
+
+	public static final int DEFAULT_THREADS = 8;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+
+	private static final long MAX_RETRY_DELAY_MILLIS = 30 * 1000;
+
+	private static final int RUNNING = 0;
+	private static final int DONE = 1;
+	private static final int GIVEN_UP = 2;
+
+	private final ConnectionManager connectionManager;
+	private final ScheduledExecutorService scheduler;
+	private final ThreadPoolExecutor workers;
+	private final long timeoutMillis;
+	private final List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+
+	/**
+	 * @param threads
+	 *            the number of hosts that can be polled at the same time
+	 * @param timeoutMillis
+	 *            the time after which a poll is given up, 0 for
+	 *            {@link #DEFAULT_TIMEOUT_MILLIS}
+	 */
+	public MetricScheduler(ConnectionManager connectionManager, int threads, long timeoutMillis) {
+		this.connectionManager = connectionManager;
+		this.timeoutMillis = timeoutMillis > 0 ? timeoutMillis : DEFAULT_TIMEOUT_MILLIS;
+
+		// only starts the polls and checks their deadlines, it never blocks
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory(
+				"poll-scheduler"));
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.scheduler = executor;
+
+		int size = Math.max(1, threads);
+		this.workers = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("poll"));
+	}
+
+	/**
+	 * Starts polling a host until {@link #stop()}.
+	 */
+	public synchronized void schedule(String hostKey, HostData hostData, List<MetricSpec> specs, long interval,
+			TimeUnit unit, MetricHandler handler) {
+		PollTask task = new PollTask(hostKey, hostData, specs, unit.toMillis(interval), handler);
+		tasks.add(scheduler.scheduleAtFixedRate(task, 0, interval, unit));
+	}
+
+	/**
+	 * Stops all polling and waits for polls that are under way.
+	 */
+	public synchronized void stop() {
+		for (ScheduledFuture<?> task : tasks) {
+			task.cancel(false);
+		}
+		tasks.clear();
+		scheduler.shutdown();
+		workers.shutdown();
+
+		try {
+			workers.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Adds a thread to the pool for a poll that is stuck, and removes it again
+	 * when the poll returns.
+	 */
+	private synchronized void resizeWorkers(int delta) {
+		if (workers.isShutdown()) {
+			return;
+		}
+		if (delta > 0) {
+			workers.setMaximumPoolSize(workers.getMaximumPoolSize() + delta);
+			workers.setCorePoolSize(workers.getCorePoolSize() + delta);
+		} else {
+			workers.setCorePoolSize(workers.getCorePoolSize() + delta);
+			workers.setMaximumPoolSize(workers.getMaximumPoolSize() + delta);
+		}
+	}
+
+	/**
+	 * Runs on the scheduler thread and hands the poll itself to a worker, one
+	 * poll of the host at a time. The state of a poll decides who owns the
+	 * fields when it ends: the worker if it finished in time, the scheduler
+	 * thread if it gave the poll up.
+	 */
+	private class PollTask implements Runnable {
+
+		private final String hostKey;
+		private final HostData hostData;
+		private final List<MetricSpec> specs;
+		private final long intervalMillis;
+		private final MetricHandler handler;
+		private ConnectionManager.Lease lease;
+		private MetricPoller poller;
+		private boolean failing;
+		private long lastPoll;
+		private long retryDelay;
+		private long nextRetry;
+
+		private Future<?> pending;
+		private AtomicInteger pendingState;
+		private AtomicLong pendingStart;
+
+		PollTask(String hostKey, HostData hostData, List<MetricSpec> specs, long intervalMillis,
+				MetricHandler handler) {
+			this.hostKey = hostKey;
+			this.hostData = hostData;
+			this.specs = specs;
+			this.intervalMillis = intervalMillis;
+			this.handler = handler;
+		}
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			if (pending != null && !pending.isDone()) {
+				// a poll waiting for a thread of the pool is not stuck
+				long start = pendingStart.get();
+				if (start > 0 && now - start > timeoutMillis && pendingState.compareAndSet(RUNNING, GIVEN_UP)) {
+					giveUp();
+				}
+				return;
+			}
+			pending = null;
+
+			if (now - lastPoll < intervalMillis * 3 / 4 || now < nextRetry) {
+				// catching up after a slow poll, or waiting to reconnect
+				return;
+			}
+			lastPoll = now;
+
+			if (lease == null) {
+				lease = connectionManager.lease(hostData);
+			}
+			final ConnectionManager.Lease currentLease = lease;
+			final MetricPoller currentPoller = poller;
+			final AtomicInteger state = new AtomicInteger(RUNNING);
+			final AtomicLong start = new AtomicLong();
+			final long timestamp = now;
+			pendingState = state;
+			pendingStart = start;
+			pending = workers.submit(new Runnable() {
+				public void run() {
+					start.set(System.currentTimeMillis());
+					poll(timestamp, state, currentLease, currentPoller);
+				}
+			});
+		}
+
+		/**
+		 * The worker of the poll is left alone until its call returns, and the
+		 * pool gets another thread meanwhile.
+		 */
+		private void giveUp() {
+			if (!failing) {
+				LOGGER.log(Level.WARNING, "Could not poll " + hostKey + ": no result after " + timeoutMillis + " ms");
+				failing = true;
+			}
+			resizeWorkers(1);
+			lease.abort();
+			lease = null;
+			poller = null;
+			retry();
+		}
+
+		private void poll(long timestamp, AtomicInteger state, ConnectionManager.Lease currentLease,
+				MetricPoller currentPoller) {
+			Number[] values;
+			try {
+				if (currentPoller == null) {
+					currentPoller = new MetricPoller(currentLease.getConnection(), specs);
+				}
+				values = currentPoller.poll();
+			} catch (IOException e) {
+				if (finish(state)) {
+					failed(e);
+					// the next poll after the retry delay opens a new connection
+					lease.abort();
+					lease = null;
+				}
+				return;
+			} catch (RuntimeException e) {
+				if (finish(state)) {
+					failed(e);
+				}
+				return;
+			}
+			if (!finish(state)) {
+				return;
+			}
+
+			poller = currentPoller;
+			if (failing) {
+				LOGGER.log(Level.INFO, "Polling " + hostKey + " again");
+				failing = false;
+				retryDelay = 0;
+			}
+
+			try {
+				handler.handleMetrics(timestamp, currentPoller.getMetricNames(), values);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not write the metrics of " + hostKey + ": " + e.getMessage());
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Could not handle the metrics of " + hostKey, e);
+			}
+		}
+
+		/**
+		 * @return false if the poll was given up, its result is dropped
+		 */
+		private boolean finish(AtomicInteger state) {
+			if (state.compareAndSet(RUNNING, DONE)) {
+				return true;
+			}
+			resizeWorkers(-1);
+			return false;
+		}
+
+		private void failed(Exception e) {
+			if (!failing) {
+				LOGGER.log(Level.WARNING, "Could not poll " + hostKey + ": " + e);
+				failing = true;
+			}
+			poller = null;
+			retry();
+		}
+
+		private void retry() {
+			retryDelay = Math.min(MAX_RETRY_DELAY_MILLIS, Math.max(intervalMillis, retryDelay * 2));
+			nextRetry = System.currentTimeMillis() + retryDelay;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.pololpoly.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * A numeric MBean value to poll, written as
+ * {@code <ObjectName>/<attribute>[.<field>...]}, e.g.
+ * {@code java.lang:type=Memory/HeapMemoryUsage.used}. The fields select
+ * items of CompositeData values. The ObjectName may be a pattern, which
+ * stands for the attribute of every matching MBean.
+ */
+public class MetricSpec {
+
+	private final ObjectName objectName;
+	private final String attribute;
+	private final String[] fields;
+
+	public MetricSpec(ObjectName objectName, String attribute, String[] fields) {
+		this.objectName = objectName;
+		this.attribute = attribute;
+		this.fields = fields;
+	}
+
+	public static MetricSpec parse(String spec) {
+		int separator = spec.lastIndexOf('/');
+		if (separator <= 0 || separator == spec.length() - 1) {
+			throw new IllegalArgumentException("Expected <ObjectName>/<attribute>[.<field>] but got " + spec);
+		}
+
+		String[] path = spec.substring(separator + 1).split("\\.");
+		String[] fields = new String[path.length - 1];
+		System.arraycopy(path, 1, fields, 0, fields.length);
+
+		try {
+			return new MetricSpec(new ObjectName(spec.substring(0, separator)), path[0], fields);
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid ObjectName in " + spec + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads one metric per line, blank lines and lines starting with # are
+	 * ignored.
+	 */
+	public static List<MetricSpec> load(File file) throws IOException {
+		List<MetricSpec> specs = new ArrayList<MetricSpec>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					specs.add(parse(line));
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage());
+		} finally {
+			reader.close();
+		}
+
+		return specs;
+	}
+
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	public String getAttribute() {
+		return attribute;
+	}
+
+	public boolean isPattern() {
+		return objectName.isPattern();
+	}
+
+	/**
+	 * @return the same attribute and fields of a concrete MBean
+	 */
+	public MetricSpec forMBean(ObjectName name) {
+		return new MetricSpec(name, attribute, fields);
+	}
+
+	/**
+	 * @return true if the other metric reads the same attribute and fields of
+	 *         an MBean this one's ObjectName matches
+	 */
+	public boolean matches(MetricSpec other) {
+		return objectName.apply(other.objectName) && attribute.equals(other.attribute)
+				&& Arrays.equals(fields, other.fields);
+	}
+
+	/**
+	 * Picks the numeric value out of an attribute value.
+	 * 
+	 * @return null if the value or one of its fields is missing or not a
+	 *         number
+	 */
+	public Number extract(Object attributeValue) {
+		Object value = attributeValue;
+		for (String field : fields) {
+			if (!(value instanceof CompositeData) || !((CompositeData) value).containsKey(field)) {
+				return null;
+			}
+			value = ((CompositeData) value).get(field);
+		}
+		return value instanceof Number ? (Number) value : null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(objectName.getCanonicalName()).append('/').append(attribute);
+		for (String field : fields) {
+			sb.append('.').append(field);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,131 @@
+package com.pololpoly.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates {@link WatchRule}s on every poll of one host. The rules are
+ * matched to the polled metrics once per {@link MetricPoller}, after that a
+ * poll only compares a few numbers, so one process can watch many hosts at
+ * short intervals. When a rule holds, the listener is told once per cooldown
+ * period.
+ */
+public class MetricWatcher implements MetricHandler {
+
+	public interface Listener {
+
+		void ruleFired(String hostKey, WatchRule rule, String metricName, double value);
+
+	}
+
+	private static final int NO_DIVISOR = -1;
+	private static final int MISSING_DIVISOR = -2;
+
+	private final String hostKey;
+	private final List<WatchRule> rules;
+	private final long cooldownMillis;
+	private final Listener listener;
+
+	// the metrics of each rule in the current names
+	private List<String> names;
+	private int[][] metricIndexes;
+	private int[] divisorIndexes;
+
+	private double[] previous;
+	private long previousTimestamp;
+	private long lastFired;
+
+	public MetricWatcher(String hostKey, List<WatchRule> rules, long cooldownMillis, Listener listener) {
+		this.hostKey = hostKey;
+		this.rules = rules;
+		this.cooldownMillis = cooldownMillis;
+		this.listener = listener;
+	}
+
+	public void handleMetrics(long timestamp, List<String> names, Number[] values) {
+		if (names != this.names) {
+			// a new poller, e.g. after a reconnect, may have other MBeans
+			resolve(names);
+		}
+
+		double seconds = (timestamp - previousTimestamp) / 1000.0;
+		boolean hasPrevious = previousTimestamp > 0 && seconds > 0;
+		boolean quiet = timestamp - lastFired < cooldownMillis;
+
+		for (int r = 0; r < rules.size() && !quiet; r++) {
+			WatchRule rule = rules.get(r);
+
+			double divisor = 1;
+			if (divisorIndexes[r] == MISSING_DIVISOR) {
+				continue;
+			} else if (divisorIndexes[r] != NO_DIVISOR) {
+				Number value = values[divisorIndexes[r]];
+				if (value == null || value.doubleValue() <= 0) {
+					continue;
+				}
+				divisor = value.doubleValue();
+			}
+
+			for (int index : metricIndexes[r]) {
+				if (values[index] == null) {
+					continue;
+				}
+
+				double value = values[index].doubleValue();
+				if (rule.isRate()) {
+					if (!hasPrevious || Double.isNaN(previous[index])) {
+						continue;
+					}
+					value = (value - previous[index]) / seconds;
+				}
+				value /= divisor;
+
+				if (rule.holds(value)) {
+					lastFired = timestamp;
+					quiet = true;
+					listener.ruleFired(hostKey, rule, names.get(index), value);
+					break;
+				}
+			}
+		}
+
+		for (int i = 0; i < values.length; i++) {
+			previous[i] = values[i] == null ? Double.NaN : values[i].doubleValue();
+		}
+		previousTimestamp = timestamp;
+	}
+
+	private void resolve(List<String> names) {
+		List<MetricSpec> polled = new ArrayList<MetricSpec>(names.size());
+		for (String name : names) {
+			polled.add(MetricSpec.parse(name));
+		}
+
+		metricIndexes = new int[rules.size()][];
+		divisorIndexes = new int[rules.size()];
+		for (int r = 0; r < rules.size(); r++) {
+			WatchRule rule = rules.get(r);
+			List<Integer> indexes = new ArrayList<Integer>();
+			divisorIndexes[r] = rule.getDivisor() == null ? NO_DIVISOR : MISSING_DIVISOR;
+			for (int i = 0; i < polled.size(); i++) {
+				if (rule.getMetric().matches(polled.get(i))) {
+					indexes.add(Integer.valueOf(i));
+				}
+				if (rule.getDivisor() != null && rule.getDivisor().matches(polled.get(i))) {
+					divisorIndexes[r] = i;
+				}
+			}
+
+			metricIndexes[r] = new int[indexes.size()];
+			for (int i = 0; i < indexes.size(); i++) {
+				metricIndexes[r][i] = indexes.get(i).intValue();
+			}
+		}
+
+		this.names = names;
+		previous = new double[names.size()];
+		Arrays.fill(previous, Double.NaN);
+		previousTimestamp = 0;
+	}
+}
@@ -0,0 +1,24 @@
+package com.pololpoly.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a readable name, so a hung remote call never
+ * keeps the dumper alive after the work is done.
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	NamedThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
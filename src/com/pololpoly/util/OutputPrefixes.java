@@ -0,0 +1,36 @@
+package com.pololpoly.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Names the output files of the captures after the host and the current
+ * second. A host captured twice in the same second gets a number after its
+ * prefix, so the second capture does not overwrite the files of the first.
+ */
+class OutputPrefixes {
+
+	private final JVMDumper dumper;
+	private final String outputPath;
+	private final Map<String, Integer> prefixCounts = new HashMap<String, Integer>();
+	private String date;
+
+	OutputPrefixes(JVMDumper dumper, String outputPath) {
+		this.dumper = dumper;
+		this.outputPath = outputPath;
+	}
+
+	synchronized String get(String hostKey, HostData hostData) {
+		String now = dumper.getCurrentDateAsString();
+		if (!now.equals(date)) {
+			// prefixes of an earlier second cannot collide any more
+			prefixCounts.clear();
+			date = now;
+		}
+
+		String outputPrefix = outputPath + hostKey + "-" + hostData.getHostName() + "-" + now;
+		Integer count = prefixCounts.get(outputPrefix);
+		prefixCounts.put(outputPrefix, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+		return count == null ? outputPrefix : outputPrefix + "-" + (count.intValue() + 1);
+	}
+}
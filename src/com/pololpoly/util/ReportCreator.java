@@ -1,12 +1,28 @@
 package com.pololpoly.util;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
@@ -14,91 +30,262 @@ import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 import javax.management.RuntimeMBeanException;
-import javax.management.openmbean.CompositeData;
 
 public class ReportCreator {
 
-	private static final String COMPOSITE_DATA_TYPE = "javax.management.openmbean.CompositeData";
 	private static Logger LOGGER = Logger.getLogger(ReportCreator.class.getName());
 
+	public static final int DEFAULT_CONCURRENT_READS = 4;
+
+	/**
+	 * Shared by all reports, the number of threads is bounded by the reports
+	 * running at the same time times their concurrent reads.
+	 */
+	private static final ExecutorService READ_POOL = Executors.newCachedThreadPool(new NamedThreadFactory(
+			"mbean-read"));
+
+	private int maxValueLength = HtmlReportWriter.DEFAULT_MAX_VALUE_LENGTH;
+	private MBeanFilter filter = MBeanFilter.ALL;
+	private MBeanInfoCache infoCache = MBeanInfoCache.getDefault();
+	private Compression compression = Compression.NONE;
+	private int concurrentReads = DEFAULT_CONCURRENT_READS;
+
+	/**
+	 * Sets the number of characters after which a single attribute value is
+	 * cut off in the report.
+	 */
+	public void setMaxValueLength(int maxValueLength) {
+		this.maxValueLength = maxValueLength;
+	}
+
+	/**
+	 * Sets the MBeans and attributes that are read, all of them by default.
+	 */
+	public void setFilter(MBeanFilter filter) {
+		this.filter = filter;
+	}
+
+	public void setInfoCache(MBeanInfoCache infoCache) {
+		this.infoCache = infoCache;
+	}
+
+	/**
+	 * Sets how the report is compressed, the file name gets the extension of
+	 * the compression.
+	 */
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets how many MBeans are read at the same time over the connection, 1
+	 * reads them one after another.
+	 */
+	public void setConcurrentReads(int concurrentReads) {
+		this.concurrentReads = Math.max(1, concurrentReads);
+	}
+
 	public void createHtmlReport(String outputFilePath, MBeanServerConnection serverConnection) {
 
-		System.out.println("Creating JMX Mbean dump to file " + outputFilePath);
+		System.out.println("Creating JMX Mbean dump to file " + compression.getFileName(outputFilePath));
 		if (outputFilePath == null || outputFilePath.length() == 0) {
 			LOGGER.log(Level.WARNING, "Output path is empty, report will not be generated.");
+			return;
 		}
 
-		File f = new File(outputFilePath);
+		try {
+			OutputStream file = compression.open(outputFilePath, CaptureStats.of(serverConnection));
+			HtmlReportWriter report = new HtmlReportWriter(new OutputStreamWriter(file, "UTF-8"), maxValueLength);
+			try {
+				report.startReport();
+				printMBeans(report, serverConnection);
+				report.endReport();
+			} finally {
+				report.close();
+			}
+
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not create a report: " + e.getMessage(), e);
+		}
+	}
 
+	private void printMBeans(HtmlReportWriter report, final MBeanServerConnection serverConnection)
+			throws IOException {
+		Set<ObjectInstance> mbeans;
 		try {
-			PrintStream printStream = new PrintStream(f);
+			mbeans = filter.queryMBeans(serverConnection);
+		} catch (IOException e) {
+			report.error(e.getMessage());
+			return;
+		}
 
-			printStream.println("<html>");
-			printStream.println("<head><title>JMX Mbean Listing</title></head>");
-			printStream.println("<body><table>");
+		CaptureStats stats = CaptureStats.of(serverConnection);
+		if (stats != null) {
+			stats.addMBeans(mbeans.size());
+		}
+		final String version = MBeanInfoCache.getVersion(serverConnection);
 
-			try {
-				for (ObjectName mbeanName : serverConnection.queryNames(null, null)) {
+		// the same MBeans always give the same report
+		List<ObjectInstance> sorted = new ArrayList<ObjectInstance>(mbeans);
+		Collections.sort(sorted, new Comparator<ObjectInstance>() {
+			public int compare(ObjectInstance o1, ObjectInstance o2) {
+				return o1.getObjectName().getCanonicalName().compareTo(o2.getObjectName().getCanonicalName());
+			}
+		});
 
-					printStream.println("<tr><td colspan='4'>&nbsp;</td></tr>");
-					printStream.println("<tr><td>MBean:</td><td colspan='3'>" + mbeanName + "</td></tr>");
+		if (concurrentReads <= 1) {
+			for (ObjectInstance mbean : sorted) {
+				printMBean(report, readMBean(serverConnection, mbean, version));
+			}
+			return;
+		}
 
-					MBeanAttributeInfo[] attributes = getMBeanInfo(serverConnection, mbeanName).getAttributes();
-					printAttributes(printStream, serverConnection, mbeanName, attributes);
+		/*
+		 * A window of MBeans is read at the same time over the connection,
+		 * the oldest one is written as soon as it arrives, so the report keeps
+		 * its order and never holds more than the window.
+		 */
+		Queue<Future<MBeanValues>> window = new ArrayDeque<Future<MBeanValues>>(concurrentReads);
+		try {
+			for (final ObjectInstance mbean : sorted) {
+				window.add(READ_POOL.submit(new Callable<MBeanValues>() {
+					public MBeanValues call() {
+						return readMBean(serverConnection, mbean, version);
+					}
+				}));
+				if (window.size() >= concurrentReads) {
+					printMBean(report, take(window));
 				}
-			} catch (IOException e) {
-				printStream.print("<tr><td colspan=3>" + e.getMessage() + "</td></tr>");
-			} catch (MBeanException e) {
-				printStream.print("<tr><td colspan=3>" + e.getMessage() + "</td></tr>");
 			}
+			while (!window.isEmpty()) {
+				printMBean(report, take(window));
+			}
+		} finally {
+			for (Future<MBeanValues> pending : window) {
+				pending.cancel(true);
+			}
+		}
+	}
 
-			printStream.println("</table></body></html>");
-			printStream.flush();
-
-		} catch (FileNotFoundException e) {
-			LOGGER.log(Level.WARNING, "Could not create a report: " + e.getMessage(), e);
+	private static MBeanValues take(Queue<Future<MBeanValues>> window) throws IOException {
+		try {
+			return window.remove().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading the MBeans");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw (Error) e.getCause();
 		}
 	}
 
-	private void printAttributes(PrintStream printStream, MBeanServerConnection server, ObjectName mbeanName,
-			MBeanAttributeInfo[] attributes) throws IOException {
+	/**
+	 * Makes all remote calls for one MBean, nothing is written yet.
+	 */
+	private MBeanValues readMBean(MBeanServerConnection server, ObjectInstance mbean, String version) {
+		MBeanValues mbeanValues = new MBeanValues(mbean.getObjectName());
 
-		for (MBeanAttributeInfo attributeInfo : attributes) {
+		try {
+			MBeanAttributeInfo[] attributes = filterAttributes(getMBeanInfo(server, mbean, version).getAttributes());
+			Map<String, Object> values = getMBeanAttributes(server, mbeanValues.name, attributes);
 
-			String name = attributeInfo.getName();
-			String type = attributeInfo.getType();
+			CaptureStats stats = CaptureStats.of(server);
+			if (stats != null) {
+				stats.addAttributes(attributes.length);
+			}
 
-			printStream.print("<tr><td>&nbsp;</td>");
-			printStream.print("<td>" + name + "</td><td>" + type + "</td><td>");
+			mbeanValues.attributes = attributes;
+			mbeanValues.values = new Object[attributes.length];
+			mbeanValues.failed = new boolean[attributes.length];
+			for (int i = 0; i < attributes.length; i++) {
+				String name = attributes[i].getName();
+				try {
+					mbeanValues.values[i] = values.containsKey(name) ? values.get(name) : getMBeanAttribute(server,
+							mbeanValues.name, name);
+				} catch (MBeanException e) {
+					mbeanValues.failed[i] = true;
+				}
+			}
+		} catch (MBeanException e) {
+			mbeanValues.error = e.getMessage();
+		}
 
-			try {
-				Object attribute = getMBeanAttribute(server, mbeanName, name);
+		return mbeanValues;
+	}
 
-				if (attribute == null) {
-					printStream.print("<font color='#660000'>null</font>");
+	private void printMBean(HtmlReportWriter report, MBeanValues mbeanValues) throws IOException {
+		report.startMBean(mbeanValues.name);
 
-				} else {
+		if (mbeanValues.error != null) {
+			report.error(mbeanValues.error);
+			return;
+		}
 
-					if (COMPOSITE_DATA_TYPE.equalsIgnoreCase(type)) {
-						if (attribute instanceof CompositeData) {
-							for (Object o : ((CompositeData) attribute).values()) {
-								printStream.print(o.toString());
-							}
-						}
-					}
+		for (int i = 0; i < mbeanValues.attributes.length; i++) {
+			MBeanAttributeInfo attributeInfo = mbeanValues.attributes[i];
+			if (mbeanValues.failed[i]) {
+				report.attributeError(attributeInfo.getName(), attributeInfo.getType());
+			} else {
+				report.attribute(attributeInfo.getName(), attributeInfo.getType(), mbeanValues.values[i]);
+			}
+		}
+	}
 
-					printStream.print(attribute.toString());
-				}
+	private MBeanAttributeInfo[] filterAttributes(MBeanAttributeInfo[] attributes) {
+		List<MBeanAttributeInfo> included = new ArrayList<MBeanAttributeInfo>(attributes.length);
+		for (MBeanAttributeInfo attributeInfo : attributes) {
+			if (filter.isAttributeIncluded(attributeInfo.getName())) {
+				included.add(attributeInfo);
+			}
+		}
+		return included.size() == attributes.length ? attributes : included.toArray(new MBeanAttributeInfo[included
+				.size()]);
+	}
+
+	/**
+	 * Reads all readable attributes of an MBean in one round trip. Attributes
+	 * that the server leaves out of the result, because reading them failed,
+	 * are missing from the returned map and have to be read one by one.
+	 */
+	private Map<String, Object> getMBeanAttributes(MBeanServerConnection server, ObjectName mbeanName,
+			MBeanAttributeInfo[] attributes) {
 
-			} catch (MBeanException e) {
-				printStream.print("<font color='#660000'>could not get the " + name + " attribute</font>");
+		Map<String, Object> values = new HashMap<String, Object>();
+
+		List<String> names = new ArrayList<String>(attributes.length);
+		for (MBeanAttributeInfo attributeInfo : attributes) {
+			if (attributeInfo.isReadable()) {
+				names.add(attributeInfo.getName());
 			}
+		}
+		if (names.isEmpty()) {
+			return values;
+		}
 
-			printStream.println("</td></tr>");
+		try {
+			AttributeList attributeList = server.getAttributes(mbeanName, names.toArray(new String[names.size()]));
+			for (Object o : attributeList) {
+				Attribute attribute = (Attribute) o;
+				values.put(attribute.getName(), attribute.getValue());
+			}
+
+		} catch (InstanceNotFoundException e) {
+			LOGGER.log(Level.FINE, "Could not read the attributes of " + mbeanName + ": " + e.getMessage());
+		} catch (ReflectionException e) {
+			LOGGER.log(Level.FINE, "Could not read the attributes of " + mbeanName + ": " + e.getMessage());
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not read the attributes of " + mbeanName + ": " + e.getMessage());
+		} catch (RuntimeMBeanException e) {
+			LOGGER.log(Level.FINE, "Could not read the attributes of " + mbeanName + ": " + e.getMessage());
 		}
+
+		return values;
 	}
 
 	private Object getMBeanAttribute(MBeanServerConnection server, final ObjectName mbeanName, String name)
@@ -120,10 +307,11 @@ public class ReportCreator {
 		}
 	}
 
-	private MBeanInfo getMBeanInfo(MBeanServerConnection server, ObjectName mBeanName) throws MBeanException {
+	private MBeanInfo getMBeanInfo(MBeanServerConnection server, ObjectInstance mbean, String version)
+			throws MBeanException {
 
 		try {
-			return server.getMBeanInfo(mBeanName);
+			return infoCache.getMBeanInfo(server, mbean, version);
 
 		} catch (InstanceNotFoundException e) {
 			throw new MBeanException(e);
@@ -136,4 +324,19 @@ public class ReportCreator {
 		}
 	}
 
+	/**
+	 * The attributes of one MBean as read from the server.
+	 */
+	private static class MBeanValues {
+
+		private final ObjectName name;
+		private MBeanAttributeInfo[] attributes;
+		private Object[] values;
+		private boolean[] failed;
+		private String error;
+
+		MBeanValues(ObjectName name) {
+			this.name = name;
+		}
+	}
 }
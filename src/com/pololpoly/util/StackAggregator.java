@@ -0,0 +1,261 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.pololpoly.util.ThreadRecord.LockRecord;
+
+/**
+ * Groups threads that are doing the same thing: the same state, the same
+ * stack trace and the same pattern of locks. Lock identities are ignored, only
+ * the lock classes and the frames they are held at count. Each group keeps
+ * one thread as an example and the names of all of them.
+ */
+public class StackAggregator {
+
+	public static class StackGroup {
+
+		private final ThreadRecord example;
+		private final List<String> threadNames = new ArrayList<String>();
+
+		StackGroup(ThreadRecord example) {
+			this.example = example;
+		}
+
+		public ThreadRecord getExample() {
+			return example;
+		}
+
+		public List<String> getThreadNames() {
+			return threadNames;
+		}
+
+		public int getCount() {
+			return threadNames.size();
+		}
+	}
+
+	private static final Comparator<StackGroup> FREQUENCY_ORDER = new Comparator<StackGroup>() {
+		public int compare(StackGroup first, StackGroup second) {
+			int difference = second.getCount() - first.getCount();
+			return difference != 0 ? difference : first.getThreadNames().get(0).compareTo(
+					second.getThreadNames().get(0));
+		}
+	};
+
+	private static final String INDENT = "    ";
+
+	private final Map<StackKey, StackGroup> groups = new HashMap<StackKey, StackGroup>();
+	private int threadCount;
+
+	public void add(ThreadRecord thread) {
+		StackKey key = new StackKey(thread);
+		StackGroup group = groups.get(key);
+		if (group == null) {
+			group = new StackGroup(thread);
+			groups.put(key, group);
+		}
+		group.threadNames.add(thread.getThreadName());
+		threadCount++;
+	}
+
+	public void addAll(ThreadRecord[] threads) {
+		for (ThreadRecord thread : threads) {
+			add(thread);
+		}
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * @return the groups, the most frequent first
+	 */
+	public List<StackGroup> getGroups() {
+		List<StackGroup> sorted = new ArrayList<StackGroup>(groups.values());
+		Collections.sort(sorted, FREQUENCY_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * Writes each unique stack once, the most frequent first, with the number
+	 * and names of the threads that share it.
+	 */
+	public void writeReport(Writer out) throws IOException {
+		List<StackGroup> sorted = getGroups();
+
+		out.write("Unique stacks: " + sorted.size() + " for " + threadCount + " threads");
+		out.write(ThreadDumpFormatter.NEW_LINE);
+
+		for (StackGroup group : sorted) {
+			ThreadRecord example = group.getExample();
+
+			out.write(ThreadDumpFormatter.NEW_LINE);
+			out.write(group.getCount() + (group.getCount() == 1 ? " thread" : " threads") + " state="
+					+ example.getThreadState());
+			if (example.getLockName() != null) {
+				out.write(example.getThreadState() == Thread.State.BLOCKED ? " waiting to lock <a " : " waiting on <a ");
+				out.write(getLockClass(example.getLockName()));
+				out.write(">");
+			}
+			out.write(ThreadDumpFormatter.NEW_LINE);
+
+			String[] stackTrace = example.getStackTrace();
+			LockRecord[] monitors = example.getLockedMonitors();
+			if (monitors.length > 1) {
+				// visited next to the frames, like ThreadDumpFormatter does
+				monitors = monitors.clone();
+				Arrays.sort(monitors, ThreadDumpFormatter.STACK_DEPTH_ORDER);
+			}
+			int nextMonitor = 0;
+			while (nextMonitor < monitors.length && monitors[nextMonitor].getStackDepth() < 0) {
+				nextMonitor++;
+			}
+			for (int i = 0; i < stackTrace.length; i++) {
+				out.write(INDENT);
+				out.write("at ");
+				out.write(stackTrace[i]);
+				out.write(ThreadDumpFormatter.NEW_LINE);
+
+				while (nextMonitor < monitors.length && monitors[nextMonitor].getStackDepth() == i) {
+					out.write(INDENT);
+					out.write("  - locked <a ");
+					out.write(monitors[nextMonitor].getClassName());
+					out.write(">");
+					out.write(ThreadDumpFormatter.NEW_LINE);
+					nextMonitor++;
+				}
+			}
+			for (LockRecord synchronizer : example.getLockedSynchronizers()) {
+				out.write(INDENT);
+				out.write("  - holds <a ");
+				out.write(synchronizer.getClassName());
+				out.write(">");
+				out.write(ThreadDumpFormatter.NEW_LINE);
+			}
+
+			out.write(INDENT);
+			out.write("threads: ");
+			boolean first = true;
+			for (String name : group.getThreadNames()) {
+				if (!first) {
+					out.write(", ");
+				}
+				out.write("\"");
+				out.write(name);
+				out.write("\"");
+				first = false;
+			}
+			out.write(ThreadDumpFormatter.NEW_LINE);
+		}
+	}
+
+	private static String getLockClass(String lockName) {
+		int separator = lockName.indexOf('@');
+		return separator < 0 ? lockName : lockName.substring(0, separator);
+	}
+
+	/**
+	 * Hash key of a thread's state, stack and lock pattern. The hash is built
+	 * from the cached hash codes of the frame strings, so most lookups only
+	 * compare frames when the stacks are in fact the same.
+	 */
+	private static class StackKey {
+
+		private final ThreadRecord thread;
+		private final int hash;
+
+		StackKey(ThreadRecord thread) {
+			this.thread = thread;
+
+			int h = thread.getThreadState().hashCode();
+			h = 31 * h + lockClassHash(thread.getLockName());
+			for (String frame : thread.getStackTrace()) {
+				h = 31 * h + frame.hashCode();
+			}
+			for (LockRecord monitor : thread.getLockedMonitors()) {
+				h = 31 * h + monitor.getClassName().hashCode() + monitor.getStackDepth();
+			}
+			for (LockRecord synchronizer : thread.getLockedSynchronizers()) {
+				h = 31 * h + synchronizer.getClassName().hashCode();
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof StackKey)) {
+				return false;
+			}
+
+			StackKey otherKey = (StackKey) obj;
+			ThreadRecord other = otherKey.thread;
+			if (hash != otherKey.hash || thread.getThreadState() != other.getThreadState()
+					|| !sameLockClass(thread.getLockName(), other.getLockName())) {
+				return false;
+			}
+
+			String[] frames = thread.getStackTrace();
+			String[] otherFrames = other.getStackTrace();
+			if (frames.length != otherFrames.length) {
+				return false;
+			}
+			for (int i = 0; i < frames.length; i++) {
+				// the innermost frames, first in a dump, differ most often
+				if (!frames[i].equals(otherFrames[i])) {
+					return false;
+				}
+			}
+
+			return sameLocks(thread.getLockedMonitors(), other.getLockedMonitors())
+					&& sameLocks(thread.getLockedSynchronizers(), other.getLockedSynchronizers());
+		}
+
+		private static int lockClassHash(String lockName) {
+			if (lockName == null) {
+				return 0;
+			}
+			int h = 0;
+			for (int i = 0; i < lockName.length() && lockName.charAt(i) != '@'; i++) {
+				h = 31 * h + lockName.charAt(i);
+			}
+			return h;
+		}
+
+		private static boolean sameLockClass(String lockName, String otherLockName) {
+			if (lockName == null || otherLockName == null) {
+				return lockName == otherLockName;
+			}
+			int length = lockName.indexOf('@');
+			length = length < 0 ? lockName.length() : length;
+			return otherLockName.length() >= length && lockName.regionMatches(0, otherLockName, 0, length)
+					&& (otherLockName.length() == length || otherLockName.charAt(length) == '@');
+		}
+
+		private static boolean sameLocks(LockRecord[] locks, LockRecord[] otherLocks) {
+			if (locks.length != otherLocks.length) {
+				return false;
+			}
+			for (int i = 0; i < locks.length; i++) {
+				if (locks[i].getStackDepth() != otherLocks[i].getStackDepth()
+						|| !locks[i].getClassName().equals(otherLocks[i].getClassName())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
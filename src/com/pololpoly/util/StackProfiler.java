@@ -0,0 +1,67 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * A sampling profiler that only needs a JMX connection. It repeatedly reads
+ * the stacks of all threads without lock information, and counts the stacks
+ * of the RUNNABLE ones in a {@link FrameTrie}.
+ */
+public class StackProfiler {
+
+	private static final String THREAD_IMPL_CLASS = "sun.management.ThreadImpl";
+
+	private final ThreadMXBean threadMxBean;
+	private final FrameTrie trie = new FrameTrie();
+
+	public StackProfiler(MBeanServerConnection connection) throws IOException {
+		this.threadMxBean = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.THREAD_MXBEAN_NAME,
+				ThreadMXBean.class);
+	}
+
+	public FrameTrie getTrie() {
+		return trie;
+	}
+
+	/**
+	 * Samples {@code samplesPerSecond} times a second for the given duration.
+	 * The samples are aggregated as they arrive.
+	 */
+	public FrameTrie profile(long duration, TimeUnit unit, int samplesPerSecond) throws DumpException {
+		long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, samplesPerSecond);
+		long count = Math.max(1, unit.toNanos(duration) / intervalNanos);
+		long start = System.nanoTime();
+
+		for (long i = 0; i < count; i++) {
+			ThreadSampler.waitUntil(start + i * intervalNanos);
+			sample();
+		}
+
+		return trie;
+	}
+
+	public void sample() {
+		for (ThreadInfo info : threadMxBean.dumpAllThreads(false, false)) {
+			if (info != null && info.getThreadState() == Thread.State.RUNNABLE) {
+				StackTraceElement[] stackTrace = info.getStackTrace();
+
+				// the thread serving this request is the profiler itself
+				if (stackTrace.length > 0 && THREAD_IMPL_CLASS.equals(stackTrace[0].getClassName())) {
+					continue;
+				}
+
+				String[] frames = new String[stackTrace.length];
+				for (int i = 0; i < stackTrace.length; i++) {
+					frames[i] = stackTrace[i].getClassName() + "." + stackTrace[i].getMethodName();
+				}
+				trie.add(frames);
+			}
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.pololpoly.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compares a series of thread dumps of one JVM: the threads that appeared
+ * and disappeared between the first and the last dump, the thread pools that
+ * grew or shrank, and the threads that did not move at all. Threads are
+ * matched by ID and name, and a stack is compared by a hash computed once per
+ * thread and dump, so even large dumps are compared in a few milliseconds.
+ * <p>
+ * A thread is stuck when it is in every dump with the same state and stack.
+ * Threads waiting with nobody owning their lock, like idle pool threads,
+ * never move either and are only counted.
+ */
+public class ThreadDumpDiff implements ThreadSampleHandler {
+
+	private static final String INDENT = "    ";
+	private static final Pattern NUMBER_IN_PARENTHESES = Pattern.compile("\\(\\d+\\)");
+
+	/**
+	 * What is known about a thread over the samples so far.
+	 */
+	private static class TrackedThread {
+
+		private final long stackHash;
+		private ThreadRecord last;
+		private int seen;
+		private boolean unchanged = true;
+
+		TrackedThread(ThreadRecord thread, long stackHash) {
+			this.last = thread;
+			this.stackHash = stackHash;
+		}
+	}
+
+	private final Map<String, TrackedThread> threads = new LinkedHashMap<String, TrackedThread>();
+	private final ThreadDumpFormatter formatter = new ThreadDumpFormatter();
+	private ThreadSample first;
+	private ThreadSample last;
+	private int sampleCount;
+
+	public void handleSample(ThreadSample sample) {
+		add(sample);
+	}
+
+	/**
+	 * Adds the next dump, dumps the JVM could not take are ignored.
+	 */
+	public void add(ThreadSample sample) {
+		if (sample.getThreads() == null) {
+			return;
+		}
+
+		sampleCount++;
+		if (first == null) {
+			first = sample;
+		}
+		last = sample;
+
+		for (ThreadRecord thread : sample.getThreads()) {
+			String key = getKey(thread);
+			long hash = getStackHash(thread);
+
+			TrackedThread tracked = threads.get(key);
+			if (tracked == null) {
+				tracked = new TrackedThread(thread, hash);
+				threads.put(key, tracked);
+			} else if (tracked.stackHash != hash) {
+				tracked.unchanged = false;
+			}
+			tracked.last = thread;
+			tracked.seen++;
+		}
+	}
+
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * @return the threads of the last dump that were not in the first one
+	 */
+	public List<ThreadRecord> getAppeared() {
+		return difference(last, first);
+	}
+
+	/**
+	 * @return the threads of the first dump that are not in the last one
+	 */
+	public List<ThreadRecord> getDisappeared() {
+		return difference(first, last);
+	}
+
+	/**
+	 * @return the threads with the same state and stack in every dump, except
+	 *         the ones waiting for a lock nobody owns
+	 */
+	public List<ThreadRecord> getStuck() {
+		List<ThreadRecord> stuck = new ArrayList<ThreadRecord>();
+		for (TrackedThread tracked : threads.values()) {
+			if (isUnchanged(tracked) && !isIdle(tracked.last)) {
+				stuck.add(tracked.last);
+			}
+		}
+		return stuck;
+	}
+
+	/**
+	 * @return the change in size of every pool whose size changed, by pool
+	 *         name; a pool is the threads whose names only differ in the
+	 *         number at the end, like pool-1-thread-1 and pool-1-thread-2
+	 */
+	public Map<String, int[]> getPoolChanges() {
+		Map<String, int[]> pools = new TreeMap<String, int[]>();
+		countPools(first, pools, 0);
+		countPools(last, pools, 1);
+
+		Map<String, int[]> changed = new TreeMap<String, int[]>();
+		for (Map.Entry<String, int[]> entry : pools.entrySet()) {
+			if (entry.getValue()[0] != entry.getValue()[1]) {
+				changed.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return changed;
+	}
+
+	public void writeReport(Writer out) throws IOException {
+		if (sampleCount < 2) {
+			out.write("At least two thread dumps are needed for a diff, got " + sampleCount);
+			out.write(ThreadDumpFormatter.NEW_LINE);
+			return;
+		}
+
+		out.write("Thread dump diff of " + sampleCount + " dumps from " + first.getDumpDate() + " ("
+				+ first.getThreads().length + " threads) to " + last.getDumpDate() + " (" + last.getThreads().length
+				+ " threads)");
+		out.write(ThreadDumpFormatter.NEW_LINE);
+
+		writeThreads(out, "Appeared", getAppeared());
+		writeThreads(out, "Disappeared", getDisappeared());
+
+		Map<String, int[]> pools = getPoolChanges();
+		out.write(ThreadDumpFormatter.NEW_LINE);
+		out.write("Pools that changed: " + pools.size());
+		out.write(ThreadDumpFormatter.NEW_LINE);
+		for (Map.Entry<String, int[]> pool : sortByGrowth(pools)) {
+			int[] sizes = pool.getValue();
+			int growth = sizes[1] - sizes[0];
+			out.write(INDENT + pool.getKey() + "* " + sizes[0] + " -> " + sizes[1] + " (" + (growth > 0 ? "+" : "")
+					+ growth + ")");
+			out.write(ThreadDumpFormatter.NEW_LINE);
+		}
+
+		List<ThreadRecord> stuck = getStuck();
+		int idle = 0;
+		for (TrackedThread tracked : threads.values()) {
+			if (isUnchanged(tracked) && isIdle(tracked.last)) {
+				idle++;
+			}
+		}
+
+		out.write(ThreadDumpFormatter.NEW_LINE);
+		out.write("Stuck in all " + sampleCount + " dumps: " + stuck.size() + " threads, not counting " + idle
+				+ " idle waiting threads");
+		out.write(ThreadDumpFormatter.NEW_LINE);
+		for (ThreadRecord thread : stuck) {
+			out.write(ThreadDumpFormatter.NEW_LINE);
+			formatter.writeSingleThread(out, thread);
+		}
+	}
+
+	private void writeThreads(Writer out, String title, List<ThreadRecord> list) throws IOException {
+		out.write(ThreadDumpFormatter.NEW_LINE);
+		out.write(title + ": " + list.size());
+		out.write(ThreadDumpFormatter.NEW_LINE);
+		for (ThreadRecord thread : list) {
+			out.write(INDENT + "\"" + thread.getThreadName() + "\" nid=" + thread.getThreadId() + " state="
+					+ thread.getThreadState());
+			out.write(ThreadDumpFormatter.NEW_LINE);
+		}
+	}
+
+	private boolean isUnchanged(TrackedThread tracked) {
+		return tracked.unchanged && tracked.seen == sampleCount;
+	}
+
+	private static boolean isIdle(ThreadRecord thread) {
+		Thread.State state = thread.getThreadState();
+		return (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) && thread.getLockOwnerId() < 0;
+	}
+
+	private static List<ThreadRecord> difference(ThreadSample sample, ThreadSample other) {
+		Map<String, ThreadRecord> otherThreads = new HashMap<String, ThreadRecord>();
+		for (ThreadRecord thread : other.getThreads()) {
+			otherThreads.put(getKey(thread), thread);
+		}
+
+		List<ThreadRecord> difference = new ArrayList<ThreadRecord>();
+		for (ThreadRecord thread : sample.getThreads()) {
+			if (!otherThreads.containsKey(getKey(thread))) {
+				difference.add(thread);
+			}
+		}
+		return difference;
+	}
+
+	private static void countPools(ThreadSample sample, Map<String, int[]> pools, int column) {
+		for (ThreadRecord thread : sample.getThreads()) {
+			String pool = getPoolName(thread.getThreadName());
+			if (pool != null) {
+				int[] sizes = pools.get(pool);
+				if (sizes == null) {
+					sizes = new int[2];
+					pools.put(pool, sizes);
+				}
+				sizes[column]++;
+			}
+		}
+	}
+
+	private static List<Map.Entry<String, int[]>> sortByGrowth(Map<String, int[]> pools) {
+		List<Map.Entry<String, int[]>> sorted = new ArrayList<Map.Entry<String, int[]>>(pools.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, int[]>>() {
+			public int compare(Map.Entry<String, int[]> first, Map.Entry<String, int[]> second) {
+				int firstGrowth = first.getValue()[1] - first.getValue()[0];
+				int secondGrowth = second.getValue()[1] - second.getValue()[0];
+				return firstGrowth != secondGrowth ? secondGrowth - firstGrowth : first.getKey().compareTo(
+						second.getKey());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * @return the name without the number at its end and with numbers in
+	 *         parentheses replaced by *, like RMI TCP Connection(*)-10.0.0.,
+	 *         or null if it does not end with a number
+	 */
+	static String getPoolName(String threadName) {
+		int end = threadName.length();
+		while (end > 0 && Character.isDigit(threadName.charAt(end - 1))) {
+			end--;
+		}
+		if (end == threadName.length() || end == 0) {
+			return null;
+		}
+		return NUMBER_IN_PARENTHESES.matcher(threadName.substring(0, end)).replaceAll("(*)");
+	}
+
+	private static String getKey(ThreadRecord thread) {
+		return thread.getThreadId() + " " + thread.getThreadName();
+	}
+
+	/**
+	 * A 64 bit hash of the state, the lock waited for and the frames, built
+	 * from the cached hash codes of the strings.
+	 */
+	private static long getStackHash(ThreadRecord thread) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ thread.getThreadState().ordinal()) * 0x100000001b3L;
+		hash = (hash ^ (thread.getLockName() == null ? 0 : thread.getLockName().hashCode())) * 0x100000001b3L;
+		for (String frame : thread.getStackTrace()) {
+			hash = (hash ^ frame.hashCode()) * 0x100000001b3L;
+			hash ^= hash >>> 29;
+		}
+		return hash;
+	}
+
+	/**
+	 * Compares the dumps of the given files in order. Both .tdump files, also
+	 * compressed, and .tsamples files can be given.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java -cp JVMDumper.jar " + ThreadDumpDiff.class.getName()
+					+ " <dump-or-samples-file>...");
+			System.exit(1);
+		}
+
+		ThreadDumpDiff diff = new ThreadDumpDiff();
+		for (String fileName : args) {
+			try {
+				addFile(diff, new File(fileName));
+			} catch (IOException e) {
+				System.err.println("Could not read " + fileName + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+			diff.writeReport(out);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Could not write the diff: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void addFile(ThreadDumpDiff diff, File file) throws IOException {
+		if (file.getName().endsWith(".tsamples")) {
+			ThreadSampleReader reader = new ThreadSampleReader(file);
+			try {
+				ThreadSample sample;
+				while ((sample = reader.next()) != null) {
+					diff.add(sample);
+				}
+			} finally {
+				reader.close();
+			}
+		} else {
+			ThreadDumpParser parser = new ThreadDumpParser(file);
+			try {
+				ThreadSample sample;
+				while ((sample = parser.next()) != null) {
+					diff.add(sample);
+				}
+			} finally {
+				parser.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.pololpoly.util.ThreadRecord.LockRecord;
+
+/**
+ * Writes thread records in the .tdump text format. Everything is streamed to
+ * the writer in one pass, nothing is assembled in memory first.
+ */
+public class ThreadDumpFormatter {
+
+	static final String NEW_LINE = "\n";
+	static final String END_OF_DUMP = "\n<EndOfDump>\n\n";
+
+	private static final String INDENT = "    ";
+
+	static final Comparator<LockRecord> STACK_DEPTH_ORDER = new Comparator<LockRecord>() {
+		public int compare(LockRecord first, LockRecord second) {
+			int firstDepth = first.getStackDepth();
+			int secondDepth = second.getStackDepth();
+			return firstDepth < secondDepth ? -1 : (firstDepth == secondDepth ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Writes a complete dump: the header, all threads and the end marker.
+	 */
+	public void writeThreadDump(Writer out, ThreadSample sample) throws IOException {
+		ThreadRecord[] threads = sample.getThreads();
+
+		if (threads != null) {
+			out.write(sample.getDumpDate());
+			out.write(sample.getDumpPrefix());
+			out.write(NEW_LINE);
+
+			for (ThreadRecord thread : threads) {
+				writeSingleThread(out, thread);
+				if (sample.isWithLocks()) {
+					writeLockInfo(out, thread.getLockedSynchronizers());
+					writeMonitorInfo(out, thread.getLockedMonitors());
+				}
+			}
+
+			if (sample.isWithLocks()) {
+				out.write(NEW_LINE);
+			}
+		}
+		out.write(END_OF_DUMP);
+	}
+
+	public void writeDeadlockedThreads(Writer out, ThreadRecord[] threads) throws IOException {
+		for (ThreadRecord thread : threads) {
+			writeSingleThread(out, thread);
+			writeLockInfo(out, thread.getLockedSynchronizers());
+			out.write(NEW_LINE);
+		}
+	}
+
+	/**
+	 * Writes the stack trace with the monitors locked at each frame. The
+	 * monitors are visited in order of their stack depth next to the frames,
+	 * instead of scanning all of them for every frame.
+	 */
+	void writeSingleThread(Writer out, ThreadRecord thread) throws IOException {
+		writeCoreThreadInfo(out, thread);
+
+		LockRecord[] monitors = thread.getLockedMonitors();
+		if (monitors.length > 1) {
+			// the sort is stable, monitors locked at the same depth keep their order
+			monitors = monitors.clone();
+			Arrays.sort(monitors, STACK_DEPTH_ORDER);
+		}
+
+		int nextMonitor = 0;
+		while (nextMonitor < monitors.length && monitors[nextMonitor].getStackDepth() < 0) {
+			nextMonitor++;
+		}
+
+		String[] stackTrace = thread.getStackTrace();
+
+		for (int i = 0; i < stackTrace.length; i++) {
+			out.write(INDENT);
+			out.write("at ");
+			out.write(stackTrace[i]);
+			out.write(NEW_LINE);
+
+			while (nextMonitor < monitors.length && monitors[nextMonitor].getStackDepth() == i) {
+				out.write(INDENT);
+				out.write("  - locked <0x");
+				out.write(monitors[nextMonitor].getObjectId());
+				out.write(">");
+				out.write(NEW_LINE);
+				nextMonitor++;
+			}
+		}
+		out.write(NEW_LINE);
+	}
+
+	private void writeCoreThreadInfo(Writer out, ThreadRecord thread) throws IOException {
+		String lockName = thread.getLockName();
+
+		out.write("\"");
+		out.write(thread.getThreadName());
+		out.write("\" nid=");
+		out.write(String.valueOf(thread.getThreadId()));
+		out.write(" state=");
+		out.write(thread.getThreadState().toString());
+
+		if (lockName != null) {
+			int separator = lockName.indexOf('@');
+			String lockClass = lockName.substring(0, separator);
+			String lockId = lockName.substring(separator + 1);
+
+			if (thread.getThreadState() != Thread.State.BLOCKED) {
+				writeLockLine(out, "- waiting on <0x", lockId, lockClass);
+				writeLockLine(out, "- locked <0x", lockId, lockClass);
+			} else {
+				writeLockLine(out, "- waiting to lock <0x", lockId, lockClass);
+			}
+		}
+
+		if (thread.isSuspended()) {
+			out.write(" (suspended)");
+		}
+
+		if (thread.isInNative()) {
+			out.write(" (running in native)");
+		}
+
+		out.write(NEW_LINE);
+		if (thread.getLockOwnerName() != null) {
+			out.write(INDENT);
+			out.write(" owned by ");
+			out.write(thread.getLockOwnerName());
+			out.write(" id=");
+			out.write(String.valueOf(thread.getLockOwnerId()));
+			out.write(NEW_LINE);
+		}
+	}
+
+	private void writeLockLine(Writer out, String prefix, String lockId, String lockClass) throws IOException {
+		out.write(NEW_LINE);
+		out.write(INDENT);
+		out.write(prefix);
+		out.write(lockId);
+		out.write("> (a ");
+		out.write(lockClass);
+		out.write(")");
+	}
+
+	private void writeMonitorInfo(Writer out, LockRecord[] monitors) throws IOException {
+		out.write(INDENT);
+		out.write("Locked monitors: count = ");
+		out.write(String.valueOf(monitors.length));
+		out.write(NEW_LINE);
+
+		for (LockRecord monitor : monitors) {
+			out.write(INDENT);
+			out.write("  - ");
+			out.write(monitor.toString());
+			out.write(" locked at \n");
+			out.write(INDENT);
+			out.write("      ");
+			out.write(String.valueOf(monitor.getStackDepth()));
+			out.write(" ");
+			out.write(String.valueOf(monitor.getStackFrame()));
+			out.write(NEW_LINE);
+		}
+		out.write(NEW_LINE);
+	}
+
+	private void writeLockInfo(Writer out, LockRecord[] locks) throws IOException {
+		out.write(INDENT);
+		out.write("Locked synchronizers: count = ");
+		out.write(String.valueOf(locks.length));
+		out.write(NEW_LINE);
+
+		for (LockRecord lock : locks) {
+			out.write(INDENT);
+			out.write("  - <0x");
+			out.write(lock.getObjectId());
+			out.write(">");
+			out.write(NEW_LINE);
+		}
+		out.write(NEW_LINE);
+	}
+}
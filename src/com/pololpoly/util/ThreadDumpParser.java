@@ -0,0 +1,205 @@
+package com.pololpoly.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.pololpoly.util.ThreadRecord.LockRecord;
+
+/**
+ * Reads the thread dumps of a .tdump file back into samples, one dump at a
+ * time. It understands the format written by {@link ThreadDumpFormatter};
+ * the deadlock reports after a dump are skipped. The class of a locked
+ * synchronizer is not in the text, so it is read as "unknown".
+ */
+public class ThreadDumpParser implements Closeable {
+
+	private static final String DUMP_HEADER = "Full thread dump ";
+	private static final String END_OF_DUMP = "<EndOfDump>";
+	private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	private static final String SUSPENDED = " (suspended)";
+	private static final String IN_NATIVE = " (running in native)";
+	private static final String UNKNOWN_CLASS = "unknown";
+
+	private final BufferedReader reader;
+	private final String source;
+
+	/**
+	 * Opens a .tdump file, which may be compressed, see
+	 * {@link Compression#openInput(File)}.
+	 */
+	public ThreadDumpParser(File file) throws IOException {
+		this(new InputStreamReader(Compression.openInput(file)), file.getName());
+	}
+
+	public ThreadDumpParser(Reader reader, String source) {
+		this.reader = new BufferedReader(reader, 64 * 1024);
+		this.source = source;
+	}
+
+	/**
+	 * @return the next dump, or null at the end of the file
+	 */
+	public ThreadSample next() throws IOException {
+		String dumpDate = null;
+		String line;
+		while ((line = reader.readLine()) != null && !line.startsWith(DUMP_HEADER)) {
+			if (line.length() > 0) {
+				dumpDate = line;
+			}
+		}
+		if (line == null) {
+			return null;
+		}
+
+		String dumpPrefix = "\n" + line + "\n";
+		List<ThreadRecord> threads = new ArrayList<ThreadRecord>();
+		ThreadBuilder thread = null;
+		boolean withLocks = false;
+
+		while ((line = reader.readLine()) != null && !line.equals(END_OF_DUMP)) {
+			if (line.startsWith("\"") && line.contains("\" nid=")) {
+				if (thread != null) {
+					threads.add(thread.build());
+				}
+				thread = new ThreadBuilder(line);
+			} else if (thread != null) {
+				withLocks |= thread.parse(line.trim());
+			}
+		}
+		if (thread != null) {
+			threads.add(thread.build());
+		}
+
+		return new ThreadSample(parseDate(dumpDate), source, dumpDate, dumpPrefix, withLocks,
+				threads.toArray(new ThreadRecord[threads.size()]));
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private static long parseDate(String dumpDate) {
+		if (dumpDate != null) {
+			try {
+				DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT, Locale.ENGLISH);
+				return dateFormat.parse(dumpDate).getTime();
+			} catch (ParseException e) {
+				// not one of our dumps, the time is unknown
+			}
+		}
+		return 0;
+	}
+
+	private static int parseIdentity(String hex) {
+		return (int) Long.parseLong(hex, 16);
+	}
+
+	/**
+	 * Collects the lines of one thread.
+	 */
+	private static class ThreadBuilder {
+
+		private static final int FRAMES = 0;
+		private static final int SYNCHRONIZERS = 1;
+		private static final int MONITORS = 2;
+
+		private final String name;
+		private final long id;
+		private final Thread.State state;
+		private String lockName;
+		private String lockOwnerName;
+		private long lockOwnerId = -1;
+		private boolean suspended;
+		private boolean inNative;
+
+		private final List<String> frames = new ArrayList<String>();
+		private final List<LockRecord> monitors = new ArrayList<LockRecord>();
+		private final List<LockRecord> synchronizers = new ArrayList<LockRecord>();
+		private int section = FRAMES;
+		private String lockedMonitor;
+
+		/**
+		 * @param header
+		 *            e.g. "main" nid=1 state=RUNNABLE (running in native)
+		 */
+		ThreadBuilder(String header) {
+			header = parseFlags(header);
+			int nameEnd = header.lastIndexOf("\" nid=");
+			name = header.substring(1, nameEnd);
+
+			int stateStart = header.indexOf(" state=", nameEnd);
+			id = Long.parseLong(header.substring(nameEnd + "\" nid=".length(), stateStart));
+			state = Thread.State.valueOf(header.substring(stateStart + " state=".length()).trim());
+		}
+
+		/**
+		 * @return true if the line shows that the dump has lock details
+		 */
+		boolean parse(String line) {
+			if (line.startsWith("at ")) {
+				frames.add(line.substring("at ".length()));
+			} else if (line.startsWith("- waiting on <0x") || line.startsWith("- waiting to lock <0x")) {
+				line = parseFlags(line);
+				int idStart = line.indexOf("<0x") + "<0x".length();
+				String lockId = line.substring(idStart, line.indexOf('>', idStart));
+				String lockClass = line.substring(line.indexOf("(a ", idStart) + "(a ".length(), line.length() - 1);
+				lockName = lockClass + "@" + lockId;
+			} else if (line.startsWith("- locked <0x") && line.contains("(a ")) {
+				// repeats the lock the thread waits on, only its flags matter
+				parseFlags(line);
+			} else if (line.startsWith("owned by ")) {
+				int idStart = line.lastIndexOf(" id=");
+				lockOwnerName = line.substring("owned by ".length(), idStart);
+				lockOwnerId = Long.parseLong(line.substring(idStart + " id=".length()));
+			} else if (line.startsWith("Locked synchronizers: count")) {
+				section = SYNCHRONIZERS;
+				return true;
+			} else if (line.startsWith("Locked monitors: count")) {
+				section = MONITORS;
+				return true;
+			} else if (section == SYNCHRONIZERS && line.startsWith("- <0x")) {
+				synchronizers.add(new LockRecord(UNKNOWN_CLASS, parseIdentity(line.substring("- <0x".length(), line
+						.length() - 1)), -1, null));
+			} else if (section == MONITORS && line.startsWith("- ") && line.endsWith(" locked at")) {
+				lockedMonitor = line.substring("- ".length(), line.length() - " locked at".length());
+			} else if (section == MONITORS && lockedMonitor != null && line.length() > 0) {
+				int separator = lockedMonitor.lastIndexOf('@');
+				int depthEnd = line.indexOf(' ');
+				String frame = line.substring(depthEnd + 1);
+				monitors.add(new LockRecord(lockedMonitor.substring(0, separator), parseIdentity(lockedMonitor
+						.substring(separator + 1)), Integer.parseInt(line.substring(0, depthEnd)), "null"
+						.equals(frame) ? null : frame));
+				lockedMonitor = null;
+			}
+			return false;
+		}
+
+		private String parseFlags(String line) {
+			if (line.endsWith(IN_NATIVE)) {
+				inNative = true;
+				line = line.substring(0, line.length() - IN_NATIVE.length());
+			}
+			if (line.endsWith(SUSPENDED)) {
+				suspended = true;
+				line = line.substring(0, line.length() - SUSPENDED.length());
+			}
+			return line;
+		}
+
+		ThreadRecord build() {
+			return new ThreadRecord(id, name, state, lockName, lockOwnerName, lockOwnerId, suspended, inNative,
+					frames.toArray(new String[frames.size()]), monitors.toArray(new LockRecord[monitors.size()]),
+					synchronizers.toArray(new LockRecord[synchronizers.size()]));
+		}
+	}
+}
@@ -1,21 +1,25 @@
 package com.pololpoly.util;
 
 import java.io.IOException;
-import java.lang.management.LockInfo;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.management.ManagementFactory;
-import java.lang.management.MonitorInfo;
 import java.lang.management.RuntimeMXBean;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
+import javax.management.MBeanInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
@@ -24,17 +28,22 @@ import javax.management.ReflectionException;
 
 public class ThreadDumper {
 
-	private static final String NEW_LINE = "\n";
+	private static final String NEW_LINE = ThreadDumpFormatter.NEW_LINE;
 
 	private static final Logger LOGGER = Logger.getLogger(ThreadDumper.class.getName());
 
 	private static final String FIND_DEADLOCKED_THREADS = "findDeadlockedThreads";
+	private static final String DEADLOCK_HEADER = "\n\nFound one Java-level deadlock:\n"
+			+ "==============================\n";
 	private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
-	private static final String INDENT = "    ";
 	private static final int CONNECT_RETRIES = 10;
 
 	private final String dumpPrefix;
 	private final boolean canDumpLocks;
+	private final ThreadDumpFormatter formatter = new ThreadDumpFormatter();
+	private final MBeanInfoCache infoCache;
+	private final String infoCacheKey;
+	private final CaptureStats stats;
 
 	/**
 	 * Constructs a ThreadMonitor object to get thread information in a remote
@@ -43,6 +52,15 @@ public class ThreadDumper {
 	 * @throws DumpException
 	 */
 	public ThreadDumper(MBeanServerConnection connection) throws IOException {
+		this(connection, MBeanInfoCache.getDefault());
+	}
+
+	/**
+	 * @param infoCache
+	 *            remembers the operations of the thread MXBean for JVMs of the
+	 *            same version
+	 */
+	public ThreadDumper(MBeanServerConnection connection, MBeanInfoCache infoCache) throws IOException {
 		RuntimeMXBean runtimeMxBean = ManagementFactory.newPlatformMXBeanProxy(connection,
 				ManagementFactory.RUNTIME_MXBEAN_NAME, RuntimeMXBean.class);
 
@@ -51,9 +69,18 @@ public class ThreadDumper {
 
 		/*
 		 * hack for jconsole dumping itself, for strange reasons, vm doesn't
-		 * provide findDeadlockedThreads, but 1.5 ops fail with an error.
+		 * provide findDeadlockedThreads, but 1.5 ops fail with an error. Later
+		 * VMs report their own version (e.g. 25.x or 17.x), so only 1.5 is
+		 * excluded; the locks are needed to check the deadlocks of a dump.
 		 */
-		canDumpLocks = javaVersion.startsWith("1.6");
+		canDumpLocks = !javaVersion.startsWith("1.5");
+
+		this.infoCache = infoCache;
+		infoCacheKey = ManagementFactory.THREAD_MXBEAN_NAME + "|" + runtimeMxBean.getVmVendor() + " "
+				+ runtimeMxBean.getVmName() + " " + javaVersion;
+
+		// counts the retries when the connection is instrumented
+		stats = CaptureStats.of(connection);
 	}
 
 	private String getDumpPrefix() {
@@ -65,26 +92,51 @@ public class ThreadDumper {
 	}
 
 	public String getThreadDump(ThreadMXBean threadMxBean) throws DumpException {
-		StringBuilder dump = new StringBuilder();
+		StringWriter dump = new StringWriter();
+		try {
+			writeThreadDump(dump, threadMxBean);
+		} catch (IOException e) {
+			// a StringWriter does not throw
+			throw new DumpException(e);
+		}
+		return dump.toString();
+	}
+
+	/**
+	 * Writes the thread dump straight to the given writer. The output is the
+	 * same as {@link #getThreadDump(ThreadMXBean)}, but the text is never
+	 * assembled in memory.
+	 * 
+	 * @return the sample that was written
+	 */
+	public ThreadSample writeThreadDump(Writer out, ThreadMXBean threadMxBean) throws IOException, DumpException {
+		ThreadSample sample = takeSample(threadMxBean);
+		formatter.writeThreadDump(out, sample);
+		return sample;
+	}
+
+	/**
+	 * Reads the threads of the JVM without printing them.
+	 */
+	public ThreadSample takeSample(ThreadMXBean threadMxBean) throws DumpException {
+		ThreadInfo[] threadsInfo = null;
+		boolean withLocks = false;
 		int retries = 0;
 
 		while (retries < CONNECT_RETRIES) {
 			try {
-				if (canDumpLocks()) {
-					if (threadMxBean.isObjectMonitorUsageSupported() && threadMxBean.isSynchronizerUsageSupported()) {
-						/*
-						 * Print lock info if both object monitor usage and
-						 * synchronizer usage are supported. This sample code
-						 * can be modified to handle if either monitor usage or
-						 * synchronizer usage is supported.
-						 */
-						ThreadInfo[] threadsInfo = threadMxBean.dumpAllThreads(true, true);
-						dump.append(getThreadsWithLockInfoDump(threadsInfo));
-					}
+				if (canDumpLocks() && threadMxBean.isObjectMonitorUsageSupported()
+						&& threadMxBean.isSynchronizerUsageSupported()) {
+					/*
+					 * Print lock info if both object monitor usage and
+					 * synchronizer usage are supported. This sample code can
+					 * be modified to handle if either monitor usage or
+					 * synchronizer usage is supported.
+					 */
+					threadsInfo = threadMxBean.dumpAllThreads(true, true);
+					withLocks = true;
 				} else {
-					ThreadInfo[] threadsInfo = threadMxBean.getThreadInfo(threadMxBean.getAllThreadIds(),
-							Integer.MAX_VALUE);
-					dump.append(getThreadsInfoDump(threadsInfo));
+					threadsInfo = threadMxBean.getThreadInfo(threadMxBean.getAllThreadIds(), Integer.MAX_VALUE);
 				}
 
 				break;
@@ -105,11 +157,15 @@ public class ThreadDumper {
 					ex.printStackTrace();
 				}
 				retries++;
+				if (stats != null) {
+					stats.addDumpRetry();
+				}
 			}
 		}
-		dump.append("\n<EndOfDump>\n\n");
 
-		return dump.toString();
+		ThreadRecord[] threads = threadsInfo == null ? null : ThreadRecord.from(threadsInfo);
+		return new ThreadSample(System.currentTimeMillis(), null, getCurrentDateAsString(), getDumpPrefix(),
+				withLocks, threads);
 	}
 
 	/**
@@ -122,189 +178,115 @@ public class ThreadDumper {
 		return dateFormat.format(new Date());
 	}
 
-	private String getDumpHeader() {
-		StringBuilder dump = new StringBuilder();
-
-		dump.append(getCurrentDateAsString());
-		dump.append(getDumpPrefix());
-		dump.append(NEW_LINE);
-
-		return dump.toString();
-	}
-
-	private String getThreadsInfoDump(ThreadInfo threadInfos[]) {
-		StringBuilder dump = new StringBuilder();
-
-		dump.append(getDumpHeader());
+	/**
+	 * Writes every deadlock among the threads of the sample. The deadlocks are
+	 * found by {@link DeadlockDetector} without another call to the JVM.
+	 * 
+	 * @return the deadlocks that were written
+	 */
+	public List<ThreadRecord[]> writeDeadlockData(Writer out, ThreadSample sample) throws IOException {
+		List<ThreadRecord[]> deadlocks = DeadlockDetector.findDeadlocks(sample);
 
-		for (ThreadInfo info : threadInfos) {
-			dump.append(getSingleThreadInfoDump(info));
+		for (ThreadRecord[] deadlock : deadlocks) {
+			out.write(DEADLOCK_HEADER);
+			formatter.writeDeadlockedThreads(out, deadlock);
 		}
-
-		return dump.toString();
-	}
-
-	private String getThreadsWithLockInfoDump(ThreadInfo threadInfos[]) {
-		StringBuilder dump = new StringBuilder();
-		dump.append(getDumpHeader());
-
-		for (ThreadInfo info : threadInfos) {
-			dump.append(getSingleThreadInfoDump(info));
-			dump.append(getLockInfoDump(info.getLockedSynchronizers()));
-			dump.append(getMonitorInfoDump(info, info.getLockedMonitors()));
+		if (deadlocks.size() > 1) {
+			out.write("\nFound " + deadlocks.size() + " deadlocks.\n");
 		}
-		dump.append(NEW_LINE);
 
-		return dump.toString();
+		return deadlocks;
 	}
 
-	private String getSingleThreadInfoDump(ThreadInfo threadInfo) {
-		StringBuilder dump = new StringBuilder();
-		dump.append(getCoreThreadInfoDump(threadInfo));
-
-		// print stack trace with locks
-		StackTraceElement[] stacktrace = threadInfo.getStackTrace();
-		
-		for (int i = 0; i < stacktrace.length; i++) {
-			StackTraceElement ste = stacktrace[i];
-			dump.append(INDENT).append("at ").append(ste.toString());
-			dump.append(NEW_LINE);
-
-			for (MonitorInfo monitorInfo : threadInfo.getLockedMonitors()) {
-				if (monitorInfo.getLockedStackDepth() == i) {
-					dump.append(INDENT).append("  - locked <0x").append(getObjectId(monitorInfo)).append(">");
-					dump.append(NEW_LINE);
-				}
-			}
-		}
-		dump.append(NEW_LINE);
-
-		return dump.toString();
-	}
-
-	private String getCoreThreadInfoDump(ThreadInfo threadInfo) {
-		StringBuilder sb = new StringBuilder();
-
-		sb.append("\"").append(threadInfo.getThreadName()).append("\"").append(" nid=")
-				.append(threadInfo.getThreadId()).append(" state=").append(threadInfo.getThreadState());
-
-		if (threadInfo.getLockName() != null && threadInfo.getThreadState() != Thread.State.BLOCKED) {
-			String[] lockInfo = threadInfo.getLockName().split("@");
-
-			sb.append(NEW_LINE).append(INDENT).append("- waiting on <0x").append(lockInfo[1]).append("> (a ")
-					.append(lockInfo[0]).append(")");
-			sb.append(NEW_LINE).append(INDENT).append("- locked <0x").append(lockInfo[1]).append("> (a ")
-					.append(lockInfo[0]).append(")");
-
-		} else if (threadInfo.getLockName() != null && threadInfo.getThreadState() == Thread.State.BLOCKED) {
-			String[] lockInfo = threadInfo.getLockName().split("@");
-			sb.append(NEW_LINE).append(INDENT).append("- waiting to lock <0x").append(lockInfo[1]).append("> (a ")
-					.append(lockInfo[0]).append(")");
-		}
-
-		if (threadInfo.isSuspended()) {
-			sb.append(" (suspended)");
-		}
+	/**
+	 * Compares deadlocks found in a sample with the ones the JVM finds itself,
+	 * which takes one or two more remote calls. A difference is logged, it can
+	 * also mean that a deadlock formed after the sample was taken.
+	 * 
+	 * @return true if both found the same threads
+	 */
+	public boolean checkDeadlocks(MBeanServerConnection connection, ThreadMXBean threadMxBean,
+			List<ThreadRecord[]> deadlocks) throws IOException, DumpException {
 
-		if (threadInfo.isInNative()) {
-			sb.append(" (running in native)");
+		long[] remote;
+		if (isFindDeadlocksMethodSupported(connection) && threadMxBean.isSynchronizerUsageSupported()) {
+			remote = threadMxBean.findDeadlockedThreads();
+		} else {
+			remote = threadMxBean.findMonitorDeadlockedThreads();
 		}
 
-		sb.append(NEW_LINE);
-		if (threadInfo.getLockOwnerName() != null) {
-			sb.append(INDENT).append(" owned by ").append(threadInfo.getLockOwnerName()).append(" id=")
-					.append(threadInfo.getLockOwnerId());
-			sb.append(NEW_LINE);
+		Set<Long> remoteIds = new TreeSet<Long>();
+		if (remote != null) {
+			for (long id : remote) {
+				remoteIds.add(Long.valueOf(id));
+			}
 		}
 
-		return sb.toString();
-	}
-
-	private String getMonitorInfoDump(ThreadInfo threadInfo, MonitorInfo[] monitors) {
-		StringBuilder dump = new StringBuilder();
-
-		dump.append(INDENT).append("Locked monitors: count = ").append(monitors.length);
-
-		for (MonitorInfo info : monitors) {
-			dump.append(INDENT).append("  - ").append(info).append(" locked at \n");
-			dump.append(INDENT).append("      ").append(info.getLockedStackDepth()).append(" ")
-					.append(info.getLockedStackFrame());
-			dump.append(NEW_LINE);
+		Set<Long> localIds = new TreeSet<Long>();
+		for (ThreadRecord[] deadlock : deadlocks) {
+			for (ThreadRecord thread : deadlock) {
+				localIds.add(Long.valueOf(thread.getThreadId()));
+			}
 		}
 
-		return dump.toString();
-	}
-
-	private String getLockInfoDump(LockInfo[] locks) {
-		StringBuilder dump = new StringBuilder();
-
-		dump.append(INDENT).append("Locked synchronizers: count = ").append(locks.length);
-		dump.append(NEW_LINE);
-
-		for (LockInfo info : locks) {
-			dump.append(INDENT).append("  - ").append("<0x").append(getObjectId(info)).append(">");
-			dump.append(NEW_LINE);
+		if (!localIds.equals(remoteIds)) {
+			LOGGER.log(Level.WARNING, "Deadlocked threads found in the dump " + localIds
+					+ " differ from the ones the JVM reports " + remoteIds);
+			return false;
 		}
-		dump.append(NEW_LINE);
-
-		return dump.toString();
+		return true;
 	}
 
 	/**
 	 * Checks if any threads are deadlocked. If any, get the thread dump
-	 * information.
+	 * information. Unlike {@link #writeDeadlockData(Writer, ThreadSample)}
+	 * this asks the JVM and reads the deadlocked threads again.
 	 * 
 	 * @throws DumpException
 	 * @throws IOException
 	 */
 	public String getDeadlockData(MBeanServerConnection connection, ThreadMXBean threadMxBean) throws IOException, DumpException {
-		StringBuilder dump = new StringBuilder();
+		StringWriter dump = new StringWriter();
+		writeDeadlockData(dump, connection, threadMxBean);
+		return dump.toString();
+	}
+
+	public void writeDeadlockData(Writer out, MBeanServerConnection connection, ThreadMXBean threadMxBean)
+			throws IOException, DumpException {
 
 		if (isFindDeadlocksMethodSupported(connection) && threadMxBean.isSynchronizerUsageSupported()) {
 			long[] deadlockedThreads = threadMxBean.findDeadlockedThreads();
 			if (deadlockedThreads == null) {
-				return "";
+				return;
 			}
 
-			dump.append("\n\nFound one Java-level deadlock:\n");
-			dump.append("==============================\n");
+			out.write(DEADLOCK_HEADER);
 
 			ThreadInfo[] infos = threadMxBean.getThreadInfo(deadlockedThreads, true, true);
-			dump.append(getDeadlockedThreadsInfoDump(infos));
+			formatter.writeDeadlockedThreads(out, ThreadRecord.from(infos));
 
 		} else {
 			long[] monitorDeadlockThreads = threadMxBean.findMonitorDeadlockedThreads();
 			if (monitorDeadlockThreads == null) {
-				return "";
+				return;
 			}
 
-			dump.append("\n\nFound one Java-level deadlock:\n");
-			dump.append("==============================\n");
+			out.write(DEADLOCK_HEADER);
 
 			ThreadInfo[] infos = threadMxBean.getThreadInfo(monitorDeadlockThreads, Integer.MAX_VALUE);
-			dump.append(getDeadlockedThreadsInfoDump(infos));
+			formatter.writeDeadlockedThreads(out, ThreadRecord.from(infos));
 
 		}
-
-		return dump.toString();
 	}
 	
-	private String getDeadlockedThreadsInfoDump(ThreadInfo[] infos) {
-		StringBuilder dump = new StringBuilder();
-		
-		for (ThreadInfo info : infos) {
-			dump.append(getSingleThreadInfoDump(info));
-			dump.append(getLockInfoDump(info.getLockedSynchronizers()));
-			dump.append(NEW_LINE);
-		}
-		
-		return dump.toString();
-	}
-
 	private boolean isFindDeadlocksMethodSupported(MBeanServerConnection connection) throws IOException, DumpException {
 		try {
-			ObjectName objectName = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
-			MBeanOperationInfo[] operations = connection.getMBeanInfo(objectName).getOperations();
+			MBeanInfo info = infoCache.get(infoCacheKey);
+			if (info == null) {
+				info = connection.getMBeanInfo(new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME));
+				infoCache.put(infoCacheKey, info);
+			}
+			MBeanOperationInfo[] operations = info.getOperations();
 
 			// look for findDeadlockedThreads operations;
 			for (MBeanOperationInfo op : operations) {
@@ -330,8 +312,4 @@ public class ThreadDumper {
 			throw new DumpException(e);
 		}
 	}
-
-	private String getObjectId(Object object) {
-		return object.toString().split("@")[1];
-	}
 }
\ No newline at end of file
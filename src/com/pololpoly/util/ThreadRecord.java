@@ -0,0 +1,186 @@
+package com.pololpoly.util;
+
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+
+/**
+ * The part of a {@link ThreadInfo} that goes into a thread dump. Unlike
+ * ThreadInfo it can be created from a stored or parsed dump, and stack frames
+ * are kept as the text they are printed with.
+ */
+public class ThreadRecord {
+
+	/**
+	 * A monitor or ownable synchronizer held by a thread. Synchronizers are
+	 * not bound to a frame and have a stack depth of -1.
+	 */
+	public static class LockRecord {
+
+		private final String className;
+		private final int identityHashCode;
+		private final int stackDepth;
+		private final String stackFrame;
+
+		public LockRecord(String className, int identityHashCode, int stackDepth, String stackFrame) {
+			this.className = className;
+			this.identityHashCode = identityHashCode;
+			this.stackDepth = stackDepth;
+			this.stackFrame = stackFrame;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public int getIdentityHashCode() {
+			return identityHashCode;
+		}
+
+		public int getStackDepth() {
+			return stackDepth;
+		}
+
+		/**
+		 * @return the frame the monitor was locked in, null for synchronizers
+		 */
+		public String getStackFrame() {
+			return stackFrame;
+		}
+
+		/**
+		 * @return the identity of the lock as printed in dumps, e.g. 1b2c3d4
+		 */
+		public String getObjectId() {
+			return Integer.toHexString(identityHashCode);
+		}
+
+		@Override
+		public String toString() {
+			return className + "@" + getObjectId();
+		}
+	}
+
+	private static final LockRecord[] NO_LOCKS = new LockRecord[0];
+
+	private final long threadId;
+	private final String threadName;
+	private final Thread.State threadState;
+	private final String lockName;
+	private final String lockOwnerName;
+	private final long lockOwnerId;
+	private final boolean suspended;
+	private final boolean inNative;
+	private final String[] stackTrace;
+	private final LockRecord[] lockedMonitors;
+	private final LockRecord[] lockedSynchronizers;
+
+	public ThreadRecord(long threadId, String threadName, Thread.State threadState, String lockName,
+			String lockOwnerName, long lockOwnerId, boolean suspended, boolean inNative, String[] stackTrace,
+			LockRecord[] lockedMonitors, LockRecord[] lockedSynchronizers) {
+		this.threadId = threadId;
+		this.threadName = threadName;
+		this.threadState = threadState;
+		this.lockName = lockName;
+		this.lockOwnerName = lockOwnerName;
+		this.lockOwnerId = lockOwnerId;
+		this.suspended = suspended;
+		this.inNative = inNative;
+		this.stackTrace = stackTrace;
+		this.lockedMonitors = lockedMonitors;
+		this.lockedSynchronizers = lockedSynchronizers;
+	}
+
+	public static ThreadRecord from(ThreadInfo info) {
+		StackTraceElement[] elements = info.getStackTrace();
+		String[] stackTrace = new String[elements.length];
+		for (int i = 0; i < elements.length; i++) {
+			stackTrace[i] = elements[i].toString();
+		}
+
+		MonitorInfo[] monitors = info.getLockedMonitors();
+		LockRecord[] lockedMonitors = monitors.length == 0 ? NO_LOCKS : new LockRecord[monitors.length];
+		for (int i = 0; i < monitors.length; i++) {
+			MonitorInfo monitor = monitors[i];
+			int depth = monitor.getLockedStackDepth();
+			String frame = depth >= 0 && depth < stackTrace.length ? stackTrace[depth] : String.valueOf(monitor
+					.getLockedStackFrame());
+			lockedMonitors[i] = new LockRecord(monitor.getClassName(), monitor.getIdentityHashCode(), depth, frame);
+		}
+
+		LockInfo[] synchronizers = info.getLockedSynchronizers();
+		LockRecord[] lockedSynchronizers = synchronizers.length == 0 ? NO_LOCKS
+				: new LockRecord[synchronizers.length];
+		for (int i = 0; i < synchronizers.length; i++) {
+			lockedSynchronizers[i] = new LockRecord(synchronizers[i].getClassName(),
+					synchronizers[i].getIdentityHashCode(), -1, null);
+		}
+
+		return new ThreadRecord(info.getThreadId(), info.getThreadName(), info.getThreadState(), info.getLockName(),
+				info.getLockOwnerName(), info.getLockOwnerId(), info.isSuspended(), info.isInNative(), stackTrace,
+				lockedMonitors, lockedSynchronizers);
+	}
+
+	public static ThreadRecord[] from(ThreadInfo[] infos) {
+		int count = 0;
+		for (ThreadInfo info : infos) {
+			// threads that ended between listing and dumping them are null
+			if (info != null) {
+				count++;
+			}
+		}
+
+		ThreadRecord[] records = new ThreadRecord[count];
+		int i = 0;
+		for (ThreadInfo info : infos) {
+			if (info != null) {
+				records[i++] = from(info);
+			}
+		}
+		return records;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	public Thread.State getThreadState() {
+		return threadState;
+	}
+
+	public String getLockName() {
+		return lockName;
+	}
+
+	public String getLockOwnerName() {
+		return lockOwnerName;
+	}
+
+	public long getLockOwnerId() {
+		return lockOwnerId;
+	}
+
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	public boolean isInNative() {
+		return inNative;
+	}
+
+	public String[] getStackTrace() {
+		return stackTrace;
+	}
+
+	public LockRecord[] getLockedMonitors() {
+		return lockedMonitors;
+	}
+
+	public LockRecord[] getLockedSynchronizers() {
+		return lockedSynchronizers;
+	}
+}
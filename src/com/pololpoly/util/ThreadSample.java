@@ -0,0 +1,58 @@
+package com.pololpoly.util;
+
+/**
+ * One thread dump of a JVM: when it was taken, the header it is printed with
+ * and the threads it contains.
+ */
+public class ThreadSample {
+
+	private final long timestamp;
+	private final String source;
+	private final String dumpDate;
+	private final String dumpPrefix;
+	private final boolean withLocks;
+	private final ThreadRecord[] threads;
+
+	/**
+	 * @param source
+	 *            the host the sample was taken from, may be null
+	 * @param withLocks
+	 *            true if the threads carry lock information and are printed
+	 *            with their locked synchronizers and monitors
+	 * @param threads
+	 *            null if the JVM could not be dumped
+	 */
+	public ThreadSample(long timestamp, String source, String dumpDate, String dumpPrefix, boolean withLocks,
+			ThreadRecord[] threads) {
+		this.timestamp = timestamp;
+		this.source = source;
+		this.dumpDate = dumpDate;
+		this.dumpPrefix = dumpPrefix;
+		this.withLocks = withLocks;
+		this.threads = threads;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getDumpDate() {
+		return dumpDate;
+	}
+
+	public String getDumpPrefix() {
+		return dumpPrefix;
+	}
+
+	public boolean isWithLocks() {
+		return withLocks;
+	}
+
+	public ThreadRecord[] getThreads() {
+		return threads;
+	}
+}
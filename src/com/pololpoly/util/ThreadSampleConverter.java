@@ -0,0 +1,70 @@
+package com.pololpoly.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Prints the samples of a binary thread sample file in the .tdump text
+ * format, either all of them or a single one.
+ */
+public class ThreadSampleConverter {
+
+	private final ThreadDumpFormatter formatter = new ThreadDumpFormatter();
+
+	/**
+	 * @param sampleNumber
+	 *            the sample to convert counting from 1, 0 converts all samples
+	 * @return the number of samples converted
+	 */
+	public int convert(File samplesFile, Writer out, int sampleNumber) throws IOException {
+		ThreadSampleReader reader = new ThreadSampleReader(samplesFile);
+		int converted = 0;
+		try {
+			int number = 0;
+			ThreadSample sample;
+			while ((sample = reader.next()) != null) {
+				number++;
+				if (sampleNumber == 0 || sampleNumber == number) {
+					formatter.writeThreadDump(out, sample);
+					converted++;
+				}
+				if (sampleNumber == number) {
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return converted;
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0 || args.length > 2) {
+			System.out.println("Usage: java -cp JVMDumper.jar " + ThreadSampleConverter.class.getName()
+					+ " <samples-file> [<sample-number>]");
+			System.exit(1);
+		}
+
+		try {
+			int sampleNumber = args.length == 2 ? Integer.parseInt(args[1]) : 0;
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+			int converted = new ThreadSampleConverter().convert(new File(args[0]), out, sampleNumber);
+			out.flush();
+
+			if (converted == 0) {
+				System.err.println("No such sample: " + sampleNumber);
+				System.exit(1);
+			}
+
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid sample number: " + args[1]);
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("Could not convert " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+
+/**
+ * Receives the thread samples of a {@link ThreadSampler} as they are taken.
+ */
+public interface ThreadSampleHandler {
+
+	void handleSample(ThreadSample sample) throws IOException;
+
+}
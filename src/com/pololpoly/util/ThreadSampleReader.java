@@ -0,0 +1,187 @@
+package com.pololpoly.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pololpoly.util.ThreadRecord.LockRecord;
+
+/**
+ * Reads the samples of a file written by {@link ThreadSampleWriter} one at a
+ * time, in the order they were written.
+ */
+public class ThreadSampleReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Thread.State[] STATES = Thread.State.values();
+	private static final LockRecord[] NO_LOCKS = new LockRecord[0];
+
+	private final InputStream in;
+	private final List<String> strings = new ArrayList<String>();
+	private final List<String[]> stacks = new ArrayList<String[]>();
+
+	private long lastTimestamp;
+
+	public ThreadSampleReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	public ThreadSampleReader(InputStream in) {
+		this.in = new BufferedInputStream(in, BUFFER_SIZE);
+	}
+
+	/**
+	 * @return the next sample, or null at the end of the file
+	 */
+	public ThreadSample next() throws IOException {
+		int tag = in.read();
+
+		while (tag == ThreadSampleWriter.MAGIC[0]) {
+			startSegment();
+			tag = in.read();
+		}
+
+		if (tag < 0) {
+			return null;
+		}
+		if (tag != ThreadSampleWriter.SAMPLE) {
+			throw new IOException("Not a thread sample file, unexpected record " + tag);
+		}
+
+		return readSample();
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void startSegment() throws IOException {
+		for (int i = 1; i < ThreadSampleWriter.MAGIC.length; i++) {
+			if (in.read() != ThreadSampleWriter.MAGIC[i]) {
+				throw new IOException("Not a thread sample file");
+			}
+		}
+		int version = in.read();
+		if (version != ThreadSampleWriter.VERSION) {
+			throw new IOException("Unsupported thread sample file version " + version);
+		}
+
+		strings.clear();
+		stacks.clear();
+		lastTimestamp = 0;
+	}
+
+	private ThreadSample readSample() throws IOException {
+		long timestamp = lastTimestamp + VarInts.readSigned(in);
+		lastTimestamp = timestamp;
+
+		String source = readString();
+		String dumpDate = readString();
+		String dumpPrefix = readString();
+		int flags = readByte();
+		boolean withLocks = (flags & ThreadSampleWriter.FLAG_WITH_LOCKS) != 0;
+
+		ThreadRecord[] threads = null;
+		if ((flags & ThreadSampleWriter.FLAG_HAS_THREADS) != 0) {
+			threads = new ThreadRecord[VarInts.readInt(in)];
+			long threadId = 0;
+			for (int i = 0; i < threads.length; i++) {
+				threadId += VarInts.readSigned(in);
+				threads[i] = readThread(threadId);
+			}
+		}
+
+		return new ThreadSample(timestamp, source, dumpDate, dumpPrefix, withLocks, threads);
+	}
+
+	private ThreadRecord readThread(long threadId) throws IOException {
+		String name = readString();
+		int state = VarInts.readInt(in);
+		if (state >= STATES.length) {
+			throw new IOException("Unknown thread state " + state);
+		}
+		String lockName = readString();
+		String lockOwnerName = readString();
+		long lockOwnerId = VarInts.readSigned(in);
+		int flags = readByte();
+		String[] stackTrace = readStack();
+
+		int monitorCount = VarInts.readInt(in);
+		LockRecord[] monitors = monitorCount == 0 ? NO_LOCKS : new LockRecord[monitorCount];
+		for (int i = 0; i < monitorCount; i++) {
+			String className = readString();
+			int identityHashCode = (int) VarInts.readUnsigned(in);
+			int depth = (int) VarInts.readSigned(in);
+			monitors[i] = new LockRecord(className, identityHashCode, depth, readString());
+		}
+
+		int synchronizerCount = VarInts.readInt(in);
+		LockRecord[] synchronizers = synchronizerCount == 0 ? NO_LOCKS : new LockRecord[synchronizerCount];
+		for (int i = 0; i < synchronizerCount; i++) {
+			String className = readString();
+			synchronizers[i] = new LockRecord(className, (int) VarInts.readUnsigned(in), -1, null);
+		}
+
+		return new ThreadRecord(threadId, name, STATES[state], lockName, lockOwnerName, lockOwnerId,
+				(flags & ThreadSampleWriter.FLAG_SUSPENDED) != 0, (flags & ThreadSampleWriter.FLAG_IN_NATIVE) != 0,
+				stackTrace, monitors, synchronizers);
+	}
+
+	private String[] readStack() throws IOException {
+		int ref = VarInts.readInt(in);
+		if (ref > 0) {
+			if (ref > stacks.size()) {
+				throw new IOException("Unknown stack " + (ref - 1));
+			}
+			return stacks.get(ref - 1);
+		}
+
+		String[] frames = new String[VarInts.readInt(in)];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = readString();
+		}
+		stacks.add(frames);
+		return frames;
+	}
+
+	private String readString() throws IOException {
+		int ref = VarInts.readInt(in);
+		if (ref == 0) {
+			return null;
+		}
+		if (ref > 1) {
+			if (ref - 2 >= strings.size()) {
+				throw new IOException("Unknown string " + (ref - 2));
+			}
+			return strings.get(ref - 2);
+		}
+
+		byte[] bytes = new byte[VarInts.readInt(in)];
+		int offset = 0;
+		while (offset < bytes.length) {
+			int read = in.read(bytes, offset, bytes.length - offset);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of a string");
+			}
+			offset += read;
+		}
+
+		String string = new String(bytes, "UTF-8");
+		strings.add(string);
+		return string;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of a sample");
+		}
+		return b;
+	}
+}
@@ -0,0 +1,206 @@
+package com.pololpoly.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.pololpoly.util.ThreadRecord.LockRecord;
+
+/**
+ * Appends thread samples to a compact binary file. Thread names, frames and
+ * lock names are written once and then referred to by number, as are whole
+ * stack traces, and all numbers are variable length encoded. Every writer
+ * starts a new segment with its own dictionary, so samples can be appended to
+ * an existing file. {@link ThreadSampleReader} reads the file back.
+ * 
+ * <pre>
+ * segment = MAGIC VERSION sample*
+ * sample  = SAMPLE timestamp-delta source date prefix flags count thread*
+ * thread  = id-delta name state lock-name lock-owner-name lock-owner-id flags stack
+ *           count monitor* count synchronizer*
+ * string  = 0 (null) | 1 length utf-8-bytes (new) | index + 2
+ * stack   = 0 count string* (new) | index + 1
+ * </pre>
+ */
+public class ThreadSampleWriter implements ThreadSampleHandler, Closeable {
+
+	static final byte[] MAGIC = { 'J', 'V', 'M', 'D', 'T', 'S' };
+	static final int VERSION = 1;
+	static final int SAMPLE = 1;
+
+	static final int FLAG_WITH_LOCKS = 1;
+	static final int FLAG_HAS_THREADS = 2;
+	static final int FLAG_SUSPENDED = 1;
+	static final int FLAG_IN_NATIVE = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final OutputStream out;
+	private final String source;
+	private final Map<String, Integer> strings = new HashMap<String, Integer>();
+	private final Map<StackKey, Integer> stacks = new HashMap<StackKey, Integer>();
+
+	private long lastTimestamp;
+
+	/**
+	 * @param source
+	 *            stored with every sample in place of the sample's own source,
+	 *            may be null
+	 */
+	public ThreadSampleWriter(File file, boolean append, String source) throws IOException {
+		this(new FileOutputStream(file, append), source);
+	}
+
+	public ThreadSampleWriter(OutputStream out, String source) throws IOException {
+		this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+		this.source = source;
+
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+	}
+
+	/**
+	 * Writes the sample and flushes it to the file.
+	 */
+	public void handleSample(ThreadSample sample) throws IOException {
+		write(sample);
+		out.flush();
+	}
+
+	public void write(ThreadSample sample) throws IOException {
+		out.write(SAMPLE);
+		VarInts.writeSigned(out, sample.getTimestamp() - lastTimestamp);
+		lastTimestamp = sample.getTimestamp();
+
+		writeString(source != null ? source : sample.getSource());
+		writeString(sample.getDumpDate());
+		writeString(sample.getDumpPrefix());
+
+		ThreadRecord[] threads = sample.getThreads();
+		int flags = (sample.isWithLocks() ? FLAG_WITH_LOCKS : 0) | (threads != null ? FLAG_HAS_THREADS : 0);
+		out.write(flags);
+		if (threads == null) {
+			return;
+		}
+
+		VarInts.writeUnsigned(out, threads.length);
+		long lastThreadId = 0;
+		for (ThreadRecord thread : threads) {
+			VarInts.writeSigned(out, thread.getThreadId() - lastThreadId);
+			lastThreadId = thread.getThreadId();
+			writeThread(thread);
+		}
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void writeThread(ThreadRecord thread) throws IOException {
+		writeString(thread.getThreadName());
+		VarInts.writeUnsigned(out, thread.getThreadState().ordinal());
+		writeString(thread.getLockName());
+		writeString(thread.getLockOwnerName());
+		VarInts.writeSigned(out, thread.getLockOwnerId());
+		out.write((thread.isSuspended() ? FLAG_SUSPENDED : 0) | (thread.isInNative() ? FLAG_IN_NATIVE : 0));
+		writeStack(thread.getStackTrace());
+
+		LockRecord[] monitors = thread.getLockedMonitors();
+		VarInts.writeUnsigned(out, monitors.length);
+		for (LockRecord monitor : monitors) {
+			writeString(monitor.getClassName());
+			VarInts.writeUnsigned(out, monitor.getIdentityHashCode() & 0xFFFFFFFFL);
+			VarInts.writeSigned(out, monitor.getStackDepth());
+			writeString(monitor.getStackFrame());
+		}
+
+		LockRecord[] synchronizers = thread.getLockedSynchronizers();
+		VarInts.writeUnsigned(out, synchronizers.length);
+		for (LockRecord synchronizer : synchronizers) {
+			writeString(synchronizer.getClassName());
+			VarInts.writeUnsigned(out, synchronizer.getIdentityHashCode() & 0xFFFFFFFFL);
+		}
+	}
+
+	private void writeStack(String[] frames) throws IOException {
+		int[] frameIds = new int[frames.length];
+		boolean known = true;
+		for (int i = 0; i < frames.length && known; i++) {
+			Integer index = strings.get(frames[i]);
+			if (index == null) {
+				known = false;
+			} else {
+				frameIds[i] = index.intValue();
+			}
+		}
+
+		if (known) {
+			Integer index = stacks.get(new StackKey(frameIds));
+			if (index != null) {
+				VarInts.writeUnsigned(out, index.intValue() + 1);
+				return;
+			}
+		}
+
+		// a stack with a frame that was never written before is always new
+		out.write(0);
+		VarInts.writeUnsigned(out, frames.length);
+		for (int i = 0; i < frames.length; i++) {
+			frameIds[i] = writeString(frames[i]);
+		}
+		stacks.put(new StackKey(frameIds), Integer.valueOf(stacks.size()));
+	}
+
+	/**
+	 * @return the dictionary index of the string, -1 for null
+	 */
+	private int writeString(String string) throws IOException {
+		if (string == null) {
+			out.write(0);
+			return -1;
+		}
+
+		Integer index = strings.get(string);
+		if (index != null) {
+			VarInts.writeUnsigned(out, index.intValue() + 2);
+			return index.intValue();
+		}
+
+		int newIndex = strings.size();
+		strings.put(string, Integer.valueOf(newIndex));
+		byte[] bytes = string.getBytes("UTF-8");
+		out.write(1);
+		VarInts.writeUnsigned(out, bytes.length);
+		out.write(bytes);
+		return newIndex;
+	}
+	/**
+	 * A stack trace as the dictionary indexes of its frames.
+	 */
+	private static class StackKey {
+
+		private final int[] frameIds;
+		private final int hash;
+
+		StackKey(int[] frameIds) {
+			this.frameIds = frameIds;
+			this.hash = Arrays.hashCode(frameIds);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof StackKey && Arrays.equals(frameIds, ((StackKey) obj).frameIds);
+		}
+	}
+}
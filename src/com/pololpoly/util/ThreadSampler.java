@@ -0,0 +1,103 @@
+package com.pololpoly.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServerConnection;
+
+/**
+ * Takes a series of thread dumps from one JVM. The connection, the
+ * {@link ThreadDumper} and the MXBean proxies are created once and reused
+ * for every sample.
+ */
+public class ThreadSampler {
+
+	private static final Logger LOGGER = Logger.getLogger(ThreadSampler.class.getName());
+
+	private final MBeanServerConnection connection;
+	private final ThreadMXBean threadMxBean;
+	private final ThreadDumper dumper;
+	private boolean deadlockCheck;
+
+	public ThreadSampler(MBeanServerConnection connection) throws IOException {
+		this.connection = connection;
+		this.threadMxBean = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.THREAD_MXBEAN_NAME,
+				ThreadMXBean.class);
+		this.dumper = new ThreadDumper(connection);
+	}
+
+	/**
+	 * Also compares the deadlocks found in the last sample with the ones the
+	 * JVM reports, see {@link ThreadDumper#checkDeadlocks}.
+	 */
+	public void setDeadlockCheck(boolean deadlockCheck) {
+		this.deadlockCheck = deadlockCheck;
+	}
+
+	/**
+	 * Writes {@code count} thread dumps to {@code out}, flushing each one as
+	 * soon as it is taken, followed by the deadlocks in the last one.
+	 */
+	public void sample(final Writer out, int count, long interval, TimeUnit unit) throws IOException, DumpException {
+		final ThreadDumpFormatter formatter = new ThreadDumpFormatter();
+		final ThreadSample[] last = new ThreadSample[1];
+
+		sample(new ThreadSampleHandler() {
+			public void handleSample(ThreadSample sample) throws IOException {
+				formatter.writeThreadDump(out, sample);
+				out.flush();
+				last[0] = sample;
+			}
+		}, count, interval, unit);
+
+		if (last[0] != null) {
+			List<ThreadRecord[]> deadlocks = dumper.writeDeadlockData(out, last[0]);
+			if (deadlockCheck) {
+				dumper.checkDeadlocks(connection, threadMxBean, deadlocks);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Takes {@code count} samples and passes each one to the handler as soon
+	 * as it is taken. Samples are due at fixed offsets from the first one, so
+	 * the time a dump takes does not add up over the series; a sample that is
+	 * already late is taken right away.
+	 */
+	public void sample(ThreadSampleHandler handler, int count, long interval, TimeUnit unit) throws IOException,
+			DumpException {
+		long intervalNanos = unit.toNanos(interval);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++) {
+			waitUntil(start + i * intervalNanos);
+			handler.handleSample(dumper.takeSample(threadMxBean));
+		}
+	}
+
+	/**
+	 * Sleeps until {@link System#nanoTime()} reaches the due time. A caller
+	 * that is already late returns right away.
+	 */
+	static void waitUntil(long dueNanos) throws DumpException {
+		long delay = dueNanos - System.nanoTime();
+		if (delay < 0 && -delay > TimeUnit.MILLISECONDS.toNanos(1)) {
+			LOGGER.log(Level.FINE, "Sample is " + TimeUnit.NANOSECONDS.toMillis(-delay) + " ms late");
+			return;
+		}
+
+		try {
+			TimeUnit.NANOSECONDS.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DumpException("Sampling was interrupted");
+		}
+	}
+}
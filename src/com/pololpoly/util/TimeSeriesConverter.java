@@ -0,0 +1,103 @@
+package com.pololpoly.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints a time series file as CSV, one row per tick and one column per
+ * metric. Metrics without a value in a tick leave their cell empty.
+ */
+public class TimeSeriesConverter {
+
+	private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
+	public void writeCsv(File file, Writer out) throws IOException {
+		// the first pass finds all metrics, so the header has every column
+		List<String> columns = new ArrayList<String>();
+		Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+
+		TimeSeriesReader reader = new TimeSeriesReader(file);
+		try {
+			while (reader.next() != null) {
+				for (String name : reader.getMetricNames()) {
+					if (!columnIndexes.containsKey(name)) {
+						columnIndexes.put(name, Integer.valueOf(columns.size()));
+						columns.add(name);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		out.write("timestamp");
+		for (String column : columns) {
+			out.write(',');
+			writeCsvField(out, column);
+		}
+		out.write('\n');
+
+		DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+		reader = new TimeSeriesReader(file);
+		try {
+			Number[] values;
+			while ((values = reader.next()) != null) {
+				List<String> names = reader.getMetricNames();
+				String[] row = new String[columns.size()];
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] != null) {
+						row[columnIndexes.get(names.get(i)).intValue()] = values[i].toString();
+					}
+				}
+
+				out.write(dateFormat.format(new Date(reader.getTimestamp())));
+				for (String cell : row) {
+					out.write(',');
+					if (cell != null) {
+						out.write(cell);
+					}
+				}
+				out.write('\n');
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void writeCsvField(Writer out, String field) throws IOException {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0) {
+			out.write(field);
+			return;
+		}
+		out.write('"');
+		out.write(field.replace("\"", "\"\""));
+		out.write('"');
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java -cp JVMDumper.jar " + TimeSeriesConverter.class.getName()
+					+ " <time-series-file>");
+			System.exit(1);
+		}
+
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+			new TimeSeriesConverter().writeCsv(new File(args[0]), out);
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("Could not convert " + args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
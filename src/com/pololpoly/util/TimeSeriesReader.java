@@ -0,0 +1,149 @@
+package com.pololpoly.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the ticks of a file written by {@link TimeSeriesWriter} one at a
+ * time.
+ */
+public class TimeSeriesReader implements Closeable {
+
+	private final InputStream in;
+	private final List<String> names = new ArrayList<String>();
+	private final List<Integer> types = new ArrayList<Integer>();
+	private long[] previous = new long[16];
+	private long lastTimestamp;
+	private long timestamp;
+
+	public TimeSeriesReader(File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	public TimeSeriesReader(InputStream in) {
+		this.in = new BufferedInputStream(in, 64 * 1024);
+	}
+
+	/**
+	 * @return the metrics defined so far in the current segment, in the order
+	 *         of the values returned by {@link #next()}
+	 */
+	public List<String> getMetricNames() {
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * @return the time of the tick last returned by {@link #next()}
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return the values of the next tick, null where a metric had no value,
+	 *         or null at the end of the file
+	 */
+	public Number[] next() throws IOException {
+		while (true) {
+			int tag = in.read();
+			if (tag < 0) {
+				return null;
+			}
+
+			if (tag == TimeSeriesWriter.MAGIC[0]) {
+				startSegment();
+			} else if (tag == TimeSeriesWriter.DEFINE) {
+				readDefinition();
+			} else if (tag == TimeSeriesWriter.TICK) {
+				return readTick();
+			} else {
+				throw new IOException("Not a time series file, unexpected record " + tag);
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void startSegment() throws IOException {
+		for (int i = 1; i < TimeSeriesWriter.MAGIC.length; i++) {
+			if (in.read() != TimeSeriesWriter.MAGIC[i]) {
+				throw new IOException("Not a time series file");
+			}
+		}
+		int version = in.read();
+		if (version != TimeSeriesWriter.VERSION) {
+			throw new IOException("Unsupported time series file version " + version);
+		}
+
+		names.clear();
+		types.clear();
+		lastTimestamp = 0;
+	}
+
+	private void readDefinition() throws IOException {
+		int type = readByte();
+		byte[] bytes = new byte[VarInts.readInt(in)];
+		int offset = 0;
+		while (offset < bytes.length) {
+			int read = in.read(bytes, offset, bytes.length - offset);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of a metric name");
+			}
+			offset += read;
+		}
+
+		names.add(new String(bytes, "UTF-8"));
+		types.add(Integer.valueOf(type));
+		if (previous.length < types.size()) {
+			long[] grown = new long[previous.length * 2];
+			System.arraycopy(previous, 0, grown, 0, previous.length);
+			previous = grown;
+		}
+		previous[types.size() - 1] = 0;
+	}
+
+	private Number[] readTick() throws IOException {
+		timestamp = lastTimestamp + VarInts.readSigned(in);
+		lastTimestamp = timestamp;
+
+		int count = types.size();
+		byte[] presence = new byte[(count + 7) / 8];
+		for (int i = 0; i < presence.length; i++) {
+			presence[i] = (byte) readByte();
+		}
+
+		Number[] values = new Number[count];
+		for (int i = 0; i < count; i++) {
+			if ((presence[i / 8] & (1 << (i % 8))) == 0) {
+				continue;
+			}
+
+			if (types.get(i).intValue() == TimeSeriesWriter.TYPE_DOUBLE) {
+				previous[i] ^= VarInts.readUnsigned(in);
+				values[i] = Double.valueOf(Double.longBitsToDouble(previous[i]));
+			} else {
+				previous[i] += VarInts.readSigned(in);
+				values[i] = Long.valueOf(previous[i]);
+			}
+		}
+		return values;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of a tick");
+		}
+		return b;
+	}
+}
@@ -0,0 +1,149 @@
+package com.pololpoly.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends polled metric values to a compact binary file. A metric is defined
+ * once, when its first value is written, and from then on every tick only
+ * stores which metrics have a value and how each value changed: integers as
+ * the variable length difference to the previous value, decimals as the XOR
+ * of their bits with the previous value. The XOR of an unchanged decimal is a
+ * single zero byte, but any change, however small, usually flips low
+ * mantissa bits and costs 8 to 10 bytes. Every writer starts a new segment,
+ * so a file can be appended to.
+ * {@link TimeSeriesReader} reads the file back.
+ * 
+ * <pre>
+ * segment = MAGIC VERSION (define | tick)*
+ * define  = DEFINE type length utf-8-name
+ * tick    = TICK timestamp-delta presence-bitmap value*
+ * </pre>
+ */
+public class TimeSeriesWriter implements MetricHandler, Closeable {
+
+	static final byte[] MAGIC = { 'J', 'V', 'M', 'D', 'T', 'M' };
+	static final int VERSION = 1;
+	static final int DEFINE = 1;
+	static final int TICK = 2;
+
+	static final int TYPE_LONG = 0;
+	static final int TYPE_DOUBLE = 1;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final OutputStream out;
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+	private final List<Integer> types = new ArrayList<Integer>();
+	private long[] previous = new long[16];
+	private long lastTimestamp;
+
+	public TimeSeriesWriter(File file, boolean append) throws IOException {
+		this(new FileOutputStream(file, append));
+	}
+
+	public TimeSeriesWriter(OutputStream out) throws IOException {
+		this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+	}
+
+	/**
+	 * Writes the values polled at one point in time and flushes them.
+	 * 
+	 * @param values
+	 *            one per name, null for values that could not be read
+	 */
+	public void write(long timestamp, List<String> names, Number[] values) throws IOException {
+		Number[] byIndex = new Number[types.size() + names.size()];
+
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				continue;
+			}
+
+			Integer index = indexes.get(names.get(i));
+			if (index == null) {
+				index = define(names.get(i), values[i]);
+			}
+			byIndex[index.intValue()] = values[i];
+		}
+
+		out.write(TICK);
+		VarInts.writeSigned(out, timestamp - lastTimestamp);
+		lastTimestamp = timestamp;
+
+		int count = types.size();
+		for (int i = 0; i < count; i += 8) {
+			int bits = 0;
+			for (int j = 0; j < 8 && i + j < count; j++) {
+				if (byIndex[i + j] != null) {
+					bits |= 1 << j;
+				}
+			}
+			out.write(bits);
+		}
+
+		for (int i = 0; i < count; i++) {
+			if (byIndex[i] != null) {
+				writeValue(i, byIndex[i]);
+			}
+		}
+
+		out.flush();
+	}
+
+	public void handleMetrics(long timestamp, List<String> names, Number[] values) throws IOException {
+		write(timestamp, names, values);
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private Integer define(String name, Number value) throws IOException {
+		int type = isDecimal(value) ? TYPE_DOUBLE : TYPE_LONG;
+		Integer index = Integer.valueOf(types.size());
+		indexes.put(name, index);
+		types.add(Integer.valueOf(type));
+
+		if (previous.length < types.size()) {
+			long[] grown = new long[previous.length * 2];
+			System.arraycopy(previous, 0, grown, 0, previous.length);
+			previous = grown;
+		}
+
+		byte[] bytes = name.getBytes("UTF-8");
+		out.write(DEFINE);
+		out.write(type);
+		VarInts.writeUnsigned(out, bytes.length);
+		out.write(bytes);
+
+		return index;
+	}
+
+	private void writeValue(int index, Number value) throws IOException {
+		if (types.get(index).intValue() == TYPE_DOUBLE) {
+			long bits = Double.doubleToLongBits(value.doubleValue());
+			VarInts.writeUnsigned(out, bits ^ previous[index]);
+			previous[index] = bits;
+		} else {
+			long longValue = value.longValue();
+			VarInts.writeSigned(out, longValue - previous[index]);
+			previous[index] = longValue;
+		}
+	}
+
+	private static boolean isDecimal(Number value) {
+		return value instanceof Double || value instanceof Float || value instanceof BigDecimal;
+	}
+}
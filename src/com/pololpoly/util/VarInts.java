@@ -0,0 +1,57 @@
+package com.pololpoly.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Variable length encoding of integers, 7 bits per byte with the high bit
+ * set on all but the last byte. Signed values are zigzag encoded first so
+ * that small negative numbers stay short.
+ */
+final class VarInts {
+
+	private VarInts() {
+	}
+
+	static void writeUnsigned(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static void writeSigned(OutputStream out, long value) throws IOException {
+		writeUnsigned(out, (value << 1) ^ (value >> 63));
+	}
+
+	static long readUnsigned(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Unexpected end of a variable length number");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Variable length number is too long");
+	}
+
+	static long readSigned(InputStream in) throws IOException {
+		long value = readUnsigned(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static int readInt(InputStream in) throws IOException {
+		long value = readUnsigned(in);
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("Number out of range: " + value);
+		}
+		return (int) value;
+	}
+}
@@ -0,0 +1,173 @@
+package com.pololpoly.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A condition on a polled metric. A rules file has one rule per line, a
+ * metric as in a metrics file, a comparison and a number:
+ *
+ * <pre>
+ * # more than 500 threads
+ * java.lang:type=Threading/ThreadCount &gt; 500
+ * # heap more than 90% full
+ * java.lang:type=Memory/HeapMemoryUsage.used / java.lang:type=Memory/HeapMemoryUsage.max &gt; 0.9
+ * # any collector busy for more than 200 ms per second
+ * rate java.lang:type=GarbageCollector,*&#47;CollectionTime &gt; 200
+ * </pre>
+ *
+ * A metric may be divided by another one, and rate compares the change of
+ * the metric per second since the previous poll. A rule on an ObjectName
+ * pattern holds if it holds for any of the matching MBeans; the divisor must
+ * name a single MBean.
+ */
+public class WatchRule {
+
+	private static final String RATE = "rate ";
+	private static final String[] OPERATORS = { ">=", "<=", ">", "<" };
+
+	private final String text;
+	private final MetricSpec metric;
+	private final MetricSpec divisor;
+	private final boolean rate;
+	private final String operator;
+	private final double threshold;
+
+	private WatchRule(String text, MetricSpec metric, MetricSpec divisor, boolean rate, String operator,
+			double threshold) {
+		this.text = text;
+		this.metric = metric;
+		this.divisor = divisor;
+		this.rate = rate;
+		this.operator = operator;
+		this.threshold = threshold;
+	}
+
+	public static WatchRule parse(String rule) {
+		String text = rule.trim();
+		int end = text.lastIndexOf(' ');
+		if (end < 0) {
+			throw new IllegalArgumentException("Expected [rate] <metric> [/ <metric>] <comparison> <number> but got "
+					+ rule);
+		}
+
+		double threshold;
+		try {
+			threshold = Double.parseDouble(text.substring(end + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number in " + rule);
+		}
+
+		String condition = text.substring(0, end).trim();
+		String operator = null;
+		for (String candidate : OPERATORS) {
+			if (condition.endsWith(" " + candidate)) {
+				operator = candidate;
+				break;
+			}
+		}
+		if (operator == null) {
+			throw new IllegalArgumentException("Expected one of > >= < <= in " + rule);
+		}
+
+		String metrics = condition.substring(0, condition.length() - operator.length()).trim();
+		boolean rate = metrics.startsWith(RATE);
+		if (rate) {
+			metrics = metrics.substring(RATE.length()).trim();
+		}
+
+		MetricSpec divisor = null;
+		int slash = metrics.indexOf(" / ");
+		if (slash >= 0) {
+			divisor = MetricSpec.parse(metrics.substring(slash + 3).trim());
+			metrics = metrics.substring(0, slash).trim();
+			if (divisor.isPattern()) {
+				throw new IllegalArgumentException("The divisor must not be a pattern in " + rule);
+			}
+		}
+
+		return new WatchRule(text, MetricSpec.parse(metrics), divisor, rate, operator, threshold);
+	}
+
+	/**
+	 * Reads one rule per line, blank lines and lines starting with # are
+	 * ignored.
+	 */
+	public static List<WatchRule> load(File file) throws IOException {
+		List<WatchRule> rules = new ArrayList<WatchRule>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					try {
+						rules.add(parse(line));
+					} catch (IllegalArgumentException e) {
+						throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return rules;
+	}
+
+	/**
+	 * @return the metrics to poll for all rules, each one once
+	 */
+	public static List<MetricSpec> getMetrics(List<WatchRule> rules) {
+		List<MetricSpec> specs = new ArrayList<MetricSpec>();
+		List<String> names = new ArrayList<String>();
+		for (WatchRule rule : rules) {
+			for (MetricSpec spec : new MetricSpec[] { rule.metric, rule.divisor }) {
+				if (spec != null && !names.contains(spec.toString())) {
+					names.add(spec.toString());
+					specs.add(spec);
+				}
+			}
+		}
+		return specs;
+	}
+
+	public MetricSpec getMetric() {
+		return metric;
+	}
+
+	/**
+	 * @return the metric the value is divided by, null if there is none
+	 */
+	public MetricSpec getDivisor() {
+		return divisor;
+	}
+
+	public boolean isRate() {
+		return rate;
+	}
+
+	public boolean holds(double value) {
+		if (">".equals(operator)) {
+			return value > threshold;
+		} else if (">=".equals(operator)) {
+			return value >= threshold;
+		} else if ("<".equals(operator)) {
+			return value < threshold;
+		} else {
+			return value <= threshold;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}